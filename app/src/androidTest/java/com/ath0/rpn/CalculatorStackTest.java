@@ -1,6 +1,11 @@
 package com.ath0.rpn.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.util.Random;
 
@@ -68,6 +73,453 @@ public class CalculatorStackTest extends TestCase {
     assertEquals("Incorrect CHS on negative", "5.00", s.toString());
   }
 
+  public static void testSwapAndErrors() {
+    CalculatorStack s = new CalculatorStack();
+    s.setScale(0);
+    s.push("1");
+    s.push("2");
+    s.swap();
+    assertEquals("Incorrect swap", "1", s.toString());
+    s.drop();
+    assertEquals("Incorrect swap of lower level", "2", s.toString());
+    s.push("0");
+    assertNotNull("Division by zero should fail", s.divide());
+    assertEquals("Failed division should leave divisor", "0", s.toString());
+    s.drop();
+    assertEquals("Failed division should leave dividend", "2", s.toString());
+  }
+
+  public static void testPendingOperation() throws Exception {
+    CalculatorStack s = new CalculatorStack();
+    s.setScale(2);
+    assertNull("Operation on empty stack should not be prepared",
+        s.prepare(CalculatorStack.OP_SQRT));
+    s.push("10");
+    s.push("4");
+    final CalculatorStack.PendingOperation op =
+        s.prepare(CalculatorStack.OP_DIVIDE);
+    assertEquals("Prepare should leave operands", "4.00", s.toString());
+    Thread t = new Thread(op);
+    t.start();
+    t.join();
+    assertNull("Incorrect error from background division", s.complete(op));
+    assertEquals("Incorrect background division", "2.50", s.toString());
+  }
+
+  public static void testCancellation() {
+    CalculatorStack s = new CalculatorStack();
+    s.setScale(2);
+    s.push("2");
+    final CalculatorStack.PendingOperation op =
+        s.prepare(CalculatorStack.OP_SQRT);
+    Thread.currentThread().interrupt();
+    op.run();
+    Thread.interrupted();
+    assertEquals("Incorrect cancellation error", "Cancelled", s.complete(op));
+    assertEquals("Cancelled operation should leave operand", "2.00",
+        s.toString());
+  }
+
+  public static void testPendingProgram() throws Exception {
+    CalculatorStack s = new CalculatorStack();
+    s.setScale(2);
+    s.push("7");
+    final CalculatorStack.PendingProgram program =
+        s.prepareProgram("1 2 3 + + chs");
+    assertEquals("Prepare should leave the stack", "7.00", s.toString());
+    Thread t = new Thread(program);
+    t.start();
+    t.join();
+    assertEquals("Run should leave the stack", "7.00", s.toString());
+    assertNull("Incorrect error from background program", s.complete(program));
+    assertEquals("Incorrect background program", "7.00\n-6.00",
+        s.toString(2).toString());
+    assertTrue("Undo failed", s.undo());
+    assertEquals("Program should undo as one change", "7.00", s.toString());
+    final CalculatorStack.PendingProgram failing =
+        s.prepareProgram("1 2 + foo");
+    failing.run();
+    assertEquals("Incorrect error", "Unknown operation foo",
+        s.complete(failing));
+    assertEquals("Changes before the error should stay", "7.00\n3.00",
+        s.toString(2).toString());
+    final CalculatorStack.PendingProgram cancelled =
+        s.prepareProgram("1 2 +");
+    Thread.currentThread().interrupt();
+    cancelled.run();
+    Thread.interrupted();
+    assertEquals("Incorrect cancellation error", "Cancelled",
+        s.complete(cancelled));
+    assertEquals("Cancelled program should change nothing", "7.00\n3.00",
+        s.toString(2).toString());
+  }
+
+  public static void testPower() {
+    CalculatorStack s = new CalculatorStack();
+    s.setScale(4);
+    s.push("2");
+    s.push("10");
+    assertNull("Unexpected error from power", s.power());
+    assertEquals("Incorrect integer power", "1024.0000", s.toString());
+    s.push("-2");
+    assertNull("Unexpected error from negative power", s.power());
+    assertEquals("Incorrect negative power", "0.0000", s.toString());
+    s.setScale(31);
+    s.drop();
+    s.push("3");
+    s.push("-1");
+    s.power();
+    assertEquals("Incorrect negative power to internal scale",
+        "0.3333333333333333333333333333333", s.toString());
+    s.push("0");
+    s.push("-1");
+    assertNotNull("Negative power of zero should fail", s.power());
+  }
+
+  public static void testPowerLimit() {
+    CalculatorStack s = new CalculatorStack();
+    s.setScale(20);
+    s.setPowerLimit(1000);
+    s.push("2");
+    s.push("100000");
+    assertNotNull("Huge power should fail", s.power());
+    assertEquals("Failed power should leave exponent",
+        "100000.00000000000000000000", s.toString());
+    s.drop();
+    s.drop();
+    s.push("1.5");
+    s.push("700");
+    assertNull("Unexpected error from bounded power", s.power());
+    BigDecimal expected = new BigDecimal("1.5").pow(700);
+    assertEquals("Incorrect bounded power",
+        expected.setScale(20, RoundingMode.HALF_UP).toPlainString(),
+        s.toString());
+  }
+
+  public static void testFractionalPower() {
+    CalculatorStack s = new CalculatorStack();
+    s.setScale(31);
+    s.push("2");
+    s.push("0.5");
+    assertNull("Unexpected error from fractional power", s.power());
+    assertEquals("Incorrect square root as power",
+        "1.4142135623730950488016887242097", s.toString());
+    s.push("10");
+    s.push("-1.5");
+    s.power();
+    assertEquals("Incorrect negative fractional power",
+        "0.0316227766016837933199889354443", s.toString());
+    s.push("-2");
+    s.push("10000000000");
+    assertNotNull("Huge power should fail", s.power());
+    s.drop();
+    s.drop();
+    s.push("-1");
+    s.push("10000000001");
+    assertNull("Unexpected error from large odd power", s.power());
+    assertEquals("Incorrect sign of large odd power",
+        "-1.0000000000000000000000000000000", s.toString());
+    s.push("-2");
+    s.push("0.5");
+    assertNotNull("Fractional power of negative number should fail",
+        s.power());
+  }
+
+  public static void testSqrt() {
+    CalculatorStack s = new CalculatorStack();
+    s.setScale(4);
+    s.push("144");
+    assertNull("Unexpected error from sqrt", s.sqrt());
+    assertEquals("Incorrect sqrt of perfect square", "12.0000", s.toString());
+    s.push("2");
+    s.sqrt();
+    s.setScale(31);
+    assertEquals("Incorrect sqrt to internal scale",
+        "1.4142135623730950488016887242097", s.toString());
+    s.push("0.00000000000000000000000000000000000000000000000000000000000000001");
+    assertNull("Unexpected error from sqrt of tiny value", s.sqrt());
+    assertEquals("Incorrect sqrt of tiny value",
+        "0.0000000000000000000000000000000", s.toString());
+    // At the internal scale this is one less than a perfect square, where
+    // plain Newton's method oscillates between two values forever.
+    s.push("0." + "9999999999999999999999999999999999999999999999999999999999999999");
+    assertNull("Unexpected error from sqrt near a square", s.sqrt());
+    assertEquals("Incorrect sqrt near a square",
+        "1.0000000000000000000000000000000", s.toString());
+    s.push("-1");
+    assertNotNull("Sqrt of negative number should fail", s.sqrt());
+  }
+
+  public static void testModificationCount() {
+    CalculatorStack s = new CalculatorStack();
+    int count = s.getModificationCount();
+    s.drop();
+    s.swap();
+    s.add();
+    assertEquals("Operations on empty stack should not count", count,
+        s.getModificationCount());
+    s.push("2");
+    assertTrue("Push should count", s.getModificationCount() != count);
+    count = s.getModificationCount();
+    s.toString(4);
+    s.prepare(CalculatorStack.OP_SQRT);
+    assertEquals("Reading stack should not count", count,
+        s.getModificationCount());
+    s.sqrt();
+    assertTrue("Operation should count", s.getModificationCount() != count);
+    count = s.getModificationCount();
+    s.setScale(4);
+    assertTrue("Scale change should count", s.getModificationCount() != count);
+  }
+
+  /**
+   * The original display formatting, for comparison.
+   */
+  private static String referenceFormat(final BigDecimal number,
+      final int scale) {
+    final StringBuilder result = new StringBuilder();
+    result.append(number.setScale(scale, RoundingMode.HALF_UP)
+        .toPlainString());
+    int dot = result.indexOf(".");
+    if (dot < 1) {
+      dot = result.length();
+    }
+    int lowindex = 0;
+    if (result.charAt(0) == '-') {
+      lowindex = 1;
+    }
+    for (int i = dot - 3; i > lowindex; i -= 3) {
+      result.insert(i, ',');
+    }
+    return result.toString();
+  }
+
+  public static void testFormatting() {
+    Random random = new Random(14);
+    String[] fixed = {"0", "-0.004", "0.005", "-0.005", "999.995", "-999.5",
+        "9223372036854775807", "-9223372036854775808", "1E+5", "-12E+3",
+        "0E+3", "0.00000", "99999999999999999999999.999", "123456.7891",
+        "-0.000000000000000000000000000000000000000000000000001"};
+    for (int i = 0; i < 2000; i++) {
+      String number;
+      if (i < fixed.length) {
+        number = fixed[i];
+      } else {
+        StringBuilder b = new StringBuilder();
+        if (random.nextBoolean()) {
+          b.append('-');
+        }
+        int digits = 1 + random.nextInt(random.nextBoolean() ? 18 : 60);
+        for (int j = 0; j < digits; j++) {
+          b.append((char) ('0' + (random.nextInt(4) == 0 ? 9 :
+              random.nextInt(10))));
+        }
+        b.append('E').append(random.nextInt(80) - 50);
+        number = b.toString();
+      }
+      BigDecimal value = new BigDecimal(number);
+      for (int scale = -4; scale <= 34; scale += 1 + random.nextInt(3)) {
+        CalculatorStack s = new CalculatorStack();
+        s.setScale(scale);
+        s.push(value.toString());
+        assertEquals("Incorrect formatting of " + number + " at scale " +
+            scale, referenceFormat(value, scale), s.toString(1).toString());
+      }
+    }
+  }
+
+  public static void testLargeFormatting() {
+    BigInteger ten = BigInteger.TEN;
+    BigInteger[] values = {ten.pow(4096),
+        ten.pow(4096).subtract(BigInteger.ONE), ten.pow(5000).add(BigInteger.ONE),
+        BigInteger.valueOf(7).pow(12345), BigInteger.valueOf(-3).pow(20001),
+        BigInteger.ONE.shiftLeft(65536)};
+    for (BigInteger v : values) {
+      BigDecimal value = new BigDecimal(v, 7);
+      for (int scale = 0; scale <= 9; scale += 3) {
+        CalculatorStack s = new CalculatorStack();
+        s.setScale(scale);
+        s.push(value.toPlainString());
+        assertEquals("Incorrect format at scale " + scale,
+            referenceFormat(value, scale), s.toString(1).toString());
+      }
+    }
+  }
+
+  public static void testDisplayChanges() {
+    CalculatorStack s = new CalculatorStack();
+    s.push("1234.5");
+    s.push("2");
+    assertEquals("Incorrect display", "1,234.50\n2.00",
+        s.toString(2).toString());
+    s.chs();
+    assertEquals("Changed value not shown", "1,234.50\n-2.00",
+        s.toString(2).toString());
+    s.setScale(1);
+    assertEquals("Scale change not shown", "1,234.5\n-2.0",
+        s.toString(2).toString());
+    s.undo();
+    assertEquals("Undone scale change not shown", "1,234.50\n-2.00",
+        s.toString(2).toString());
+    s.swap();
+    assertEquals("Swap not shown", "-2.00\n1,234.50",
+        s.toString(2).toString());
+  }
+
+  public static void testLines() {
+    CalculatorStack s = new CalculatorStack();
+    s.push("1234.5");
+    s.push("-2");
+    String[] lines = new String[4];
+    s.getLines(lines, 3);
+    assertEquals("Empty level should be blank", "", lines[0]);
+    assertEquals("Incorrect second level", "1,234.50", lines[1]);
+    assertEquals("Incorrect top level", "-2.00", lines[2]);
+    assertNull("Lines past the levels should be left alone", lines[3]);
+    s.getLines(lines, 4);
+    assertEquals("Lines should match toString", s.toString(4).toString(),
+        lines[0] + "\n" + lines[1] + "\n" + lines[2] + "\n" + lines[3]);
+  }
+
+  private static String evaluate(final String program) {
+    CalculatorStack s = new CalculatorStack();
+    s.setScale(4);
+    assertNull("Unexpected error in " + program, s.evaluate(program));
+    return s.toString(2).toString();
+  }
+
+  public static void testEvaluate() {
+    assertEquals("Incorrect program", "\n35.0000", evaluate("3 4 + 5 *"));
+    assertEquals("Operators need no spaces", "\n35.0000", evaluate("3 4+5*"));
+    assertEquals("Incorrect negative numbers", "\n-5.0000",
+        evaluate("-2 3 -"));
+    assertEquals("Incorrect commas", "\n2,469.0000",
+        evaluate("1,234.5\t2\n*"));
+    assertEquals("Incorrect exponent", "\n1,001.0000", evaluate("1e3 1 +"));
+    assertEquals("Incorrect names", "\n8.0000", evaluate("2 3 POW"));
+    assertEquals("Incorrect names", "2.0000\n0.5000",
+        evaluate("2 dup 1/x swap sqrt dup * swap"));
+    assertEquals("Incorrect caret", "\n9.0000", evaluate("3 2^"));
+    assertEquals("Incorrect drop", "\n1.0000", evaluate("1 2 drop"));
+    assertEquals("Incorrect scale", "\n0.3", evaluate("1 3 / 1 sdp"));
+    assertEquals("Empty program", "\n", evaluate("  "));
+  }
+
+  public static void testEvaluateErrors() {
+    CalculatorStack s = new CalculatorStack();
+    s.push("1");
+    assertEquals("Incorrect error", "Unknown operation foo",
+        s.evaluate("2 3 + foo 4"));
+    assertEquals("Changes before the error should stay", "1.00\n5.00",
+        s.toString(2).toString());
+    assertNotNull("Division by zero should fail", s.evaluate("0 /"));
+    assertNotNull("Invalid number should fail", s.evaluate("1.2.3"));
+    assertNotNull("Number run into a word should fail", s.evaluate("12ab"));
+    final String before = s.toString(2).toString();
+    assertEquals("Misplaced comma should fail", "Invalid number 1,2",
+        s.evaluate("1,2 3 +"));
+    assertEquals("Misplaced commas should fail", "Invalid number 1,2,3",
+        s.evaluate("1,2,3"));
+    assertEquals("Short group should fail", "Invalid number 1,23.5",
+        s.evaluate("1,23.5"));
+    assertEquals("Long first group should fail", "Invalid number 1234,567",
+        s.evaluate("1234,567"));
+    assertEquals("Comma after the point should fail",
+        "Invalid number 1.234,567", s.evaluate("1.234,567"));
+    assertEquals("Trailing comma should fail", "Invalid number 1,",
+        s.evaluate("1,"));
+    assertEquals("Failed numbers should change nothing", before,
+        s.toString(2).toString());
+    assertNull("Grouped numbers should be allowed",
+        s.evaluate("-1,234,567.5 1,000e3 drop drop"));
+    s = new CalculatorStack();
+    s.push("7");
+    s.evaluate("1 2 3 + + chs");
+    assertTrue("Undo failed", s.undo());
+    assertEquals("Program should undo as one change", "7.00", s.toString());
+  }
+
+  public static void testHugeNumbers() {
+    CalculatorStack s = new CalculatorStack();
+    assertEquals("Huge exponent should fail", "Invalid number 1e2147483647",
+        s.evaluate("1e2147483647 1 +"));
+    assertEquals("Huge exponent should fail", "Invalid number 1e999999999",
+        s.evaluate("1e999999999 1e999999999 *"));
+    assertEquals("Huge exponent should fail", "Invalid number 1e99999999",
+        s.evaluate("1e99999999"));
+    assertEquals("Tiny exponent should fail", "Invalid number 1e-99999999",
+        s.evaluate("1e-99999999"));
+    assertTrue("Nothing should be pushed", s.isEmpty());
+    assertNull("Long exponent should be allowed", s.evaluate("1e199990"));
+    assertEquals("Huge product should fail", "Result too large",
+        s.evaluate("dup *"));
+    s.drop();
+    assertFalse("Operands should be kept", s.isEmpty());
+    assertEquals("Huge quotient should fail", "Result too large",
+        s.evaluate("1e-32 /"));
+  }
+
+  public static void testUndoRedo() {
+    CalculatorStack s = new CalculatorStack();
+    assertFalse("Nothing to undo", s.undo());
+    s.push("2");
+    s.push("3");
+    s.setScale(0);
+    s.multiply();
+    assertEquals("Incorrect product", "6", s.toString());
+    assertTrue("Undo failed", s.undo());
+    assertEquals("Undo should restore operands", "2\n3",
+        s.toString(2).toString());
+    assertTrue("Undo failed", s.undo());
+    assertEquals("Undo should restore scale", 2, s.getScale());
+    assertTrue("Redo failed", s.redo());
+    assertTrue("Redo failed", s.redo());
+    assertEquals("Redo should repeat product", "6", s.toString());
+    assertFalse("Nothing to redo", s.redo());
+    s.undo();
+    s.push("4");
+    assertFalse("Change should discard redo history", s.canRedo());
+    int count = s.getModificationCount();
+    s.undo();
+    assertTrue("Undo should count as a change",
+        s.getModificationCount() != count);
+  }
+
+  public static void testHistoryLimit() {
+    CalculatorStack s = new CalculatorStack();
+    s.setHistoryLimit(10000);
+    for (int i = 0; i < 1000; i++) {
+      s.push(Integer.toString(i));
+    }
+    int undone = 0;
+    while (s.undo()) {
+      undone++;
+    }
+    assertTrue("History should be limited", undone > 0 && undone < 1000);
+    assertEquals("Oldest versions should be forgotten",
+        Integer.toString(999 - undone), s.toString().replace(".00", ""));
+    s.setHistoryLimit(0);
+    assertFalse("History should be cleared", s.canRedo());
+  }
+
+  public static void testSerialization() throws Exception {
+    CalculatorStack s = new CalculatorStack();
+    s.setScale(3);
+    s.push("1.5");
+    s.push("123456789012345678901234567890.25");
+    s.push("-7");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(s);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(bytes.toByteArray()));
+    CalculatorStack r = (CalculatorStack) in.readObject();
+    assertEquals("Incorrect restored stack", s.toString(4).toString(),
+        r.toString(4).toString());
+    assertEquals("Incorrect restored scale", 3, r.getScale());
+  }
+
   private String randomNumber() {
     StringBuilder s = new StringBuilder(this.MAX_DIGITS);
     Random r = new Random();
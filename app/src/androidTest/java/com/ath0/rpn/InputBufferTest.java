@@ -44,4 +44,22 @@ public class InputBufferTest extends TestCase {
     assertEquals("Incorrect post-decimal-deletion decimal append", "12309.8", ib.toString());
   }
 
+  public static void testModificationCount() {
+    InputBuffer ib = new InputBuffer();
+    int count = ib.getModificationCount();
+    ib.delete();
+    ib.append('x');
+    assertEquals("No-op edits should not count", count,
+        ib.getModificationCount());
+    ib.append('1');
+    assertTrue("Append should count", ib.getModificationCount() != count);
+    count = ib.getModificationCount();
+    ib.append('.');
+    ib.append('.');
+    assertEquals("Only the first decimal point should count", count + 1,
+        ib.getModificationCount());
+    ib.zap();
+    assertEquals("Zap should count", count + 2, ib.getModificationCount());
+  }
+
 }
@@ -0,0 +1,246 @@
+package com.ath0.rpn.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.ath0.rpn.CalculatorStack;
+import com.ath0.rpn.InputBuffer;
+import com.ath0.rpn.Journal;
+import com.ath0.rpn.Macro;
+import com.ath0.rpn.StateFile;
+import com.ath0.rpn.StateWriter;
+
+public class JournalTest extends TestCase {
+
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    this.file = File.createTempFile("journal", null);
+    this.file.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    this.file.delete();
+    super.tearDown();
+  }
+
+  private Journal open(final CalculatorStack s, final InputBuffer b)
+      throws IOException {
+    Journal j = new Journal(this.file);
+    b.set(j.load(s));
+    s.setJournal(j);
+    b.setJournal(j);
+    return j;
+  }
+
+  /**
+   * Counts the temporary files written alongside the state file.
+   */
+  private int tempFiles() {
+    int count = 0;
+    for (File f : this.file.getAbsoluteFile().getParentFile().listFiles()) {
+      if (f.getName().startsWith(this.file.getName()) &&
+          f.getName().endsWith(".tmp") && !f.equals(this.file)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static StateWriter writer(final Journal j) {
+    return new StateWriter(j, new StateWriter.OnSaveFailed() {
+      @Override
+      public void onSaveFailed(final IOException ex) {
+        fail("Unexpected save failure: " + ex.getMessage());
+      }
+    });
+  }
+
+  private static void edit(final CalculatorStack s, final InputBuffer b) {
+    s.push("2");
+    s.push("3");
+    s.add();
+    s.push("123456789012345678901234567890");
+    s.multiply();
+    s.dup();
+    s.sqrt();
+    s.swap();
+    s.push("7");
+    s.chs();
+    s.push("4");
+    s.setScale();
+    s.push("1");
+    s.drop();
+    b.append('1');
+    b.append('.');
+    b.append('5');
+    b.delete();
+  }
+
+  public void testReplay() throws IOException {
+    CalculatorStack s = new CalculatorStack();
+    InputBuffer b = new InputBuffer();
+    Journal j = open(s, b);
+    edit(s, b);
+    // Left open, as if the process had died.
+    CalculatorStack r = new CalculatorStack();
+    assertEquals("Incorrect replayed input", "1.",
+        StateFile.read(this.file, r));
+    assertEquals("Incorrect replayed stack", s.toString(4).toString(),
+        r.toString(4).toString());
+    assertEquals("Incorrect replayed scale", 4, r.getScale());
+    j.close();
+  }
+
+  public void testMacros() throws IOException {
+    CalculatorStack s = new CalculatorStack();
+    InputBuffer b = new InputBuffer();
+    Journal j = open(s, b);
+    s.setMacros(new Macro[] {Macro.compile("2 /")});
+    s.run(s.getMacros()[0]);
+    CalculatorStack r = new CalculatorStack();
+    StateFile.read(this.file, r);
+    assertEquals("Macro should be replayed", "2 /",
+        r.getMacros()[0].getText());
+    j.close();
+  }
+
+  public void testCutShort() throws IOException {
+    File empty = File.createTempFile("empty", null);
+    StateFile.write(empty, new CalculatorStack(), "");
+    long records = empty.length();
+    empty.delete();
+    CalculatorStack s = new CalculatorStack();
+    InputBuffer b = new InputBuffer();
+    Journal j = open(s, b);
+    s.push("1");
+    s.push("2");
+    j.close();
+    // Each push takes 4 bytes. Clear the type byte of the second, as if
+    // the process had died while writing it.
+    RandomAccessFile f = new RandomAccessFile(this.file, "rw");
+    f.seek(records + 4);
+    f.write(0);
+    f.close();
+    CalculatorStack r = new CalculatorStack();
+    j = open(r, new InputBuffer());
+    assertEquals("Incorrect replayed stack", "\n1.00",
+        r.toString(2).toString());
+    r.push("3");
+    j.close();
+    CalculatorStack r2 = new CalculatorStack();
+    StateFile.read(this.file, r2);
+    assertEquals("Incorrect stack", "1.00\n3.00", r2.toString(2).toString());
+  }
+
+  public void testUndo() throws IOException {
+    CalculatorStack s = new CalculatorStack();
+    InputBuffer b = new InputBuffer();
+    s.push("1");
+    s.push("2");
+    s.push("3");
+    Journal j = new Journal(this.file);
+    j.start(s, "");
+    s.setJournal(j);
+    // The versions undone to are older than the saved state.
+    s.add();
+    s.undo();
+    s.undo();
+    s.undo();
+    s.setScale(5);
+    s.undo();
+    s.redo();
+    j.close();
+    CalculatorStack r = new CalculatorStack();
+    StateFile.read(this.file, r);
+    assertEquals("Incorrect replayed stack", s.toString(3).toString(),
+        r.toString(3).toString());
+    assertEquals("Incorrect replayed scale", 5, r.getScale());
+    assertFalse("Replay should leave no history", r.canUndo());
+  }
+
+  public void testWriter() throws Exception {
+    CalculatorStack s = new CalculatorStack();
+    InputBuffer b = new InputBuffer();
+    Journal j = open(s, b);
+    StateWriter writer = writer(j);
+    s.push("1");
+    writer.save(StateFileTest.sampleStack(), "3");
+    // Made after the snapshot, so copied into the compacted file.
+    s.push("2");
+    b.set("4");
+    writer.shutdown();
+    assertTrue("Save did not finish",
+        writer.awaitTermination(10, TimeUnit.SECONDS));
+    s.push("5");
+    j.close();
+    assertEquals("Temporary files should be gone", 0, tempFiles());
+    CalculatorStack r = new CalculatorStack();
+    assertEquals("Incorrect input", "4", StateFile.read(this.file, r));
+    CalculatorStack expected = StateFileTest.sampleStack();
+    expected.push("2");
+    expected.push("5");
+    assertEquals("Incorrect stack", expected.toString(12).toString(),
+        r.toString(12).toString());
+  }
+
+  public void testInputEdits() throws IOException {
+    CalculatorStack s = new CalculatorStack();
+    InputBuffer b = new InputBuffer();
+    Journal j = open(s, b);
+    b.append('.');
+    b.append('5');
+    b.zap();
+    for (int i = 0; i < 20000; i++) {
+      b.append((char) ('1' + i % 9));
+    }
+    b.delete();
+    b.append("0.25");
+    j.close();
+    InputBuffer r = new InputBuffer();
+    open(new CalculatorStack(), r).close();
+    assertEquals("Incorrect replayed input", b.get(), r.get());
+    assertTrue("Input should end with the pasted text",
+        r.get().endsWith("0.25"));
+  }
+
+  public void testLateCompaction() throws Exception {
+    CalculatorStack s = new CalculatorStack();
+    InputBuffer b = new InputBuffer();
+    Journal old = open(s, b);
+    s.push("1");
+    StateWriter oldWriter = writer(old);
+    old.close();
+    // As when the activity is recreated while its last save is running.
+    CalculatorStack s2 = new CalculatorStack();
+    InputBuffer b2 = new InputBuffer();
+    Journal j = open(s2, b2);
+    StateWriter writer = writer(j);
+    oldWriter.save(s, "");
+    s2.push("2");
+    CalculatorStack saved = new CalculatorStack();
+    saved.push("1");
+    saved.push("2");
+    writer.save(saved, "");
+    oldWriter.shutdown();
+    writer.shutdown();
+    assertTrue("Saves did not finish",
+        oldWriter.awaitTermination(10, TimeUnit.SECONDS) &&
+        writer.awaitTermination(10, TimeUnit.SECONDS));
+    s2.push("3");
+    j.close();
+    assertEquals("Temporary files should be gone", 0, tempFiles());
+    CalculatorStack r = new CalculatorStack();
+    StateFile.read(this.file, r);
+    assertEquals("Incorrect stack", "1.00\n2.00\n3.00",
+        r.toString(3).toString());
+  }
+
+}
@@ -0,0 +1,34 @@
+package com.ath0.rpn.test;
+
+import junit.framework.TestCase;
+
+import com.ath0.rpn.Keys;
+
+public class KeysTest extends TestCase {
+
+  public static void testTags() {
+    for (int key = 0; key < Keys.COUNT; key++) {
+      assertEquals("Tag does not map back to key " + key, key,
+          Keys.forTag(Keys.tag(key)));
+    }
+    assertEquals("Incorrect key for tag", Keys.RECIPROCAL, Keys.forTag("1/x"));
+    assertEquals("Unknown tag should be no key", Keys.NONE,
+        Keys.forTag("dup"));
+  }
+
+  public static void testChars() {
+    assertEquals("Incorrect digit key", 7, Keys.forChar('7'));
+    assertEquals("Incorrect point key", Keys.POINT, Keys.forChar('.'));
+    assertEquals("Incorrect divide key", Keys.DIVIDE, Keys.forChar('/'));
+    assertEquals("Letter should be no key", Keys.NONE, Keys.forChar('e'));
+    assertEquals("Non-ASCII should be no key", Keys.NONE,
+        Keys.forChar('\u00f7'));
+    for (char c = '0'; c <= '9'; c++) {
+      int key = Keys.forChar(c);
+      assertTrue("Digit should be input", Keys.isInput(key));
+      assertEquals("Incorrect input char", c, Keys.toChar(key));
+    }
+    assertFalse("Add is not input", Keys.isInput(Keys.ADD));
+  }
+
+}
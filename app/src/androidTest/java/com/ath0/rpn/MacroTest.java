@@ -0,0 +1,91 @@
+package com.ath0.rpn.test;
+
+import junit.framework.TestCase;
+
+import com.ath0.rpn.CalculatorStack;
+import com.ath0.rpn.Keys;
+import com.ath0.rpn.Macro;
+import com.ath0.rpn.ScaledDecimal;
+
+public class MacroTest extends TestCase {
+
+  private static Macro record(final int... keys) {
+    Macro.Recorder r = new Macro.Recorder();
+    for (int key : keys) {
+      r.record(key);
+    }
+    return r.finish();
+  }
+
+  public static void testRecorder() {
+    assertEquals("Incorrect recording", "1.15 *",
+        record(1, Keys.POINT, 1, 5, Keys.MULTIPLY).getText());
+    assertEquals("Enter should push typed digits", "2 3 +",
+        record(2, Keys.ENTER, 3, Keys.ADD).getText());
+    assertEquals("Enter and backspace should act on the stack",
+        "dup drop 1/x", record(Keys.ENTER, Keys.BACKSPACE,
+            Keys.RECIPROCAL).getText());
+    assertEquals("Backspace should delete a typed digit", "0.5 swap 7",
+        record(Keys.POINT, Keys.POINT, 5, 9, Keys.BACKSPACE, Keys.SWAP,
+            7).getText());
+    Macro.Recorder r = new Macro.Recorder();
+    r.record(2);
+    r.record(Macro.compile("3 +"));
+    r.record(ScaledDecimal.valueOf("-1.5E+3"));
+    r.record(Keys.MULTIPLY);
+    assertEquals("Pasted programs and numbers should be recorded",
+        "2 3 + -1.5E+3 *", r.finish().getText());
+    assertTrue("Nothing should be recorded", new Macro.Recorder().isEmpty());
+  }
+
+  public static void testRun() {
+    CalculatorStack s = new CalculatorStack();
+    s.push("100");
+    Macro m = record(1, Keys.POINT, 1, 5, Keys.MULTIPLY, Keys.ENTER,
+        Keys.SQRT, Keys.ADD);
+    assertEquals("Incorrect length", 5, m.length());
+    assertNull("Macro should run", s.run(m));
+    assertEquals("Incorrect result", "125.72", s.toString());
+    assertTrue("Undo failed", s.undo());
+    assertEquals("Macro should undo as one change", "100.00", s.toString());
+    assertNotNull("Division by zero should fail",
+        s.run(Macro.compile("0 /")));
+  }
+
+  public static void testPendingMacro() throws Exception {
+    CalculatorStack s = new CalculatorStack();
+    s.push("100");
+    final CalculatorStack.PendingProgram run =
+        s.prepareMacro(Macro.compile("1.15 * dup sqrt +"));
+    Thread t = new Thread(run);
+    t.start();
+    t.join();
+    assertEquals("Run should leave the stack", "100.00", s.toString());
+    assertNull("Macro should run", s.complete(run));
+    assertEquals("Incorrect result", "125.72", s.toString());
+    assertTrue("Undo failed", s.undo());
+    assertEquals("Macro should undo as one change", "100.00", s.toString());
+    final CalculatorStack.PendingProgram cancelled =
+        s.prepareMacro(Macro.compile("2 *"));
+    Thread.currentThread().interrupt();
+    cancelled.run();
+    Thread.interrupted();
+    assertEquals("Incorrect cancellation error", "Cancelled",
+        s.complete(cancelled));
+    assertEquals("Cancelled macro should change nothing", "100.00",
+        s.toString());
+  }
+
+  public static void testCompile() {
+    assertEquals("Incorrect length", 3,
+        Macro.compile("1,000 neg  pow").length());
+    try {
+      Macro.compile("2 foo");
+      fail("Unknown operation should fail");
+    } catch (IllegalArgumentException ex) {
+      assertEquals("Incorrect error", "Unknown operation foo",
+          ex.getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,87 @@
+package com.ath0.rpn.test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import com.ath0.rpn.CalculatorStack;
+import com.ath0.rpn.Macro;
+import com.ath0.rpn.NumberImporter;
+
+public class NumberImporterTest extends TestCase {
+
+  private static String importText(final String text) {
+    NumberImporter importer = new NumberImporter();
+    assertTrue("Import failed: " + importer.getError(), importer.read(text));
+    CalculatorStack s = new CalculatorStack();
+    importer.pushTo(s);
+    return s.toString(importer.count()).toString().replace('\n', '|');
+  }
+
+  public static void testSeparators() {
+    assertEquals("Incorrect column", "1.00|2.50|-3.00",
+        importText("1\n2.5\r\n-3\n"));
+    assertEquals("Incorrect row", "1.00|2.00|3.00|4.00|5.00",
+        importText("1,2,3;4\t\"5\""));
+    assertEquals("Incorrect decimals", "1.50|2.50", importText("1.5,2.5"));
+    assertEquals("Empty cells should be skipped", "1.00|2.00",
+        importText(",1,,2,"));
+  }
+
+  public static void testGrouping() {
+    assertEquals("Incorrect grouped number", "1,234,567.89",
+        importText("1,234,567.89"));
+    assertEquals("Incorrect grouped list", "-1,234.00|5.00|1,234.00|567.00",
+        importText("-1,234,5 1234,567"));
+    assertEquals("Incorrect exponent", "12,000.00", importText("12,000e0"));
+  }
+
+  public static void testErrors() {
+    NumberImporter importer = new NumberImporter();
+    assertFalse("Header should fail", importer.read("Amount\n12\n"));
+    assertEquals("Incorrect error", "Invalid number Amount",
+        importer.getError());
+    assertFalse("Operator should fail", new NumberImporter().read("3 4 +"));
+    importer = new NumberImporter();
+    assertFalse("Huge exponent should fail",
+        importer.read("1\n1e99999999\n2\n"));
+    assertEquals("Incorrect error", "Invalid number 1e99999999",
+        importer.getError());
+    assertFalse("Huge exponent should fail",
+        new NumberImporter().read("1e2147483647"));
+  }
+
+  public static void testRecordTo() {
+    NumberImporter importer = new NumberImporter();
+    assertTrue("Import failed", importer.read("1,234.5\n-3\n12e3\n"));
+    Macro.Recorder r = new Macro.Recorder();
+    importer.recordTo(r);
+    Macro m = r.finish();
+    assertEquals("Incorrect length", 3, m.length());
+    CalculatorStack s = new CalculatorStack();
+    assertNull("Macro should run", s.run(m));
+    assertEquals("Incorrect recorded numbers", "1,234.50|-3.00|12,000.00",
+        s.toString(3).toString().replace('\n', '|'));
+  }
+
+  public static void testReaderAndUndo() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 1; i <= 50000; i++) {
+      text.append(i).append(".5\n");
+    }
+    NumberImporter importer = new NumberImporter();
+    assertTrue("Import failed", importer.read(new StringReader(
+        text.toString())));
+    assertEquals("Incorrect count", 50000, importer.count());
+    CalculatorStack s = new CalculatorStack();
+    // More than the default budget, which such a large change would exceed.
+    s.setHistoryLimit(16 * 1024 * 1024);
+    s.push("7");
+    importer.pushTo(s);
+    assertEquals("Incorrect top", "50000.50", s.toString());
+    assertTrue("Undo failed", s.undo());
+    assertEquals("Import should undo as one change", "7.00", s.toString());
+  }
+
+}
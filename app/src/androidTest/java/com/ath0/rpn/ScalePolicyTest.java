@@ -0,0 +1,65 @@
+package com.ath0.rpn.test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import junit.framework.TestCase;
+
+import com.ath0.rpn.CalculatorStack;
+import com.ath0.rpn.ScalePolicy;
+import com.ath0.rpn.ScaledDecimal;
+
+public class ScalePolicyTest extends TestCase {
+
+  public static void testCap() {
+    ScalePolicy p = new ScalePolicy(4, false);
+    assertEquals("Incorrect rounding to cap", new BigDecimal("0.3333"),
+        p.apply(ScaledDecimal.valueOf("0.33333333")).toBigDecimal());
+    assertEquals("Incorrect half even rounding", new BigDecimal("0.1234"),
+        p.apply(ScaledDecimal.valueOf("0.12345")).toBigDecimal());
+    assertEquals("Value within cap should be unchanged", new BigDecimal("2.50"),
+        p.apply(ScaledDecimal.valueOf("2.50")).toBigDecimal());
+    assertEquals("Whole number should keep its scale", new BigDecimal("2.0000"),
+        p.apply(ScaledDecimal.valueOf("2.00000000")).toBigDecimal());
+  }
+
+  public static void testExactIntegers() {
+    ScalePolicy p = new ScalePolicy(4, true);
+    assertEquals("Whole number should be at scale 0", new BigDecimal("2"),
+        p.apply(ScaledDecimal.valueOf("2.00000000")).toBigDecimal());
+    assertEquals("Large whole number should be at scale 0",
+        new BigDecimal("123456789012345678901234567890"),
+        p.apply(ScaledDecimal.valueOf(
+            "123456789012345678901234567890.000000")).toBigDecimal());
+    assertEquals("Fraction should be unchanged", new BigDecimal("2.50"),
+        p.apply(ScaledDecimal.valueOf("2.50")).toBigDecimal());
+  }
+
+  public static void testMultiplyChain() {
+    CalculatorStack s = new CalculatorStack();
+    s.setScale(10);
+    s.push("1");
+    s.push("3");
+    s.divide();
+    for (int i = 0; i < 20; i++) {
+      s.push("1.5");
+      s.multiply();
+    }
+    BigDecimal expected = BigDecimal.ONE.divide(new BigDecimal("3"), 32,
+        RoundingMode.HALF_EVEN);
+    for (int i = 0; i < 20; i++) {
+      expected = expected.multiply(new BigDecimal("1.5"));
+    }
+    assertEquals("Incorrect capped multiply chain",
+        expected.setScale(10, RoundingMode.HALF_UP).toPlainString(),
+        s.toString());
+    s.push("3");
+    s.push("3");
+    s.divide();
+    s.multiply();
+    assertEquals("Incorrect multiply by exact quotient",
+        expected.setScale(10, RoundingMode.HALF_UP).toPlainString(),
+        s.toString());
+  }
+
+}
@@ -0,0 +1,86 @@
+package com.ath0.rpn.test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.ath0.rpn.ScaledDecimal;
+
+public class ScaledDecimalTest extends TestCase {
+
+  // Number of rounds of testing for each numeric operation.
+  private final int TEST_ROUNDS = 1000;
+
+  private final Random random = new Random();
+
+  public static void testParse() {
+    assertEquals("Incorrect integer parse", new BigDecimal("0078704"),
+        ScaledDecimal.valueOf("0078704").toBigDecimal());
+    assertEquals("Incorrect decimal parse", new BigDecimal("-12.50"),
+        ScaledDecimal.valueOf("-12.50").toBigDecimal());
+    assertEquals("Incorrect trailing point parse", new BigDecimal("5."),
+        ScaledDecimal.valueOf("5.").toBigDecimal());
+    assertTrue("Small value should be compact",
+        ScaledDecimal.valueOf("123456789.123456789").isCompact());
+    assertFalse("Large value should not be compact",
+        ScaledDecimal.valueOf("123456789012345678901234567890").isCompact());
+  }
+
+  public static void testOverflow() {
+    final ScaledDecimal max = ScaledDecimal.valueOf(Long.MAX_VALUE, 0);
+    final ScaledDecimal min = ScaledDecimal.valueOf(Long.MIN_VALUE, 0);
+    assertEquals("Incorrect add overflow",
+        BigDecimal.valueOf(Long.MAX_VALUE).add(BigDecimal.ONE),
+        max.add(ScaledDecimal.ONE).toBigDecimal());
+    assertEquals("Incorrect multiply overflow",
+        BigDecimal.valueOf(Long.MAX_VALUE).multiply(BigDecimal.valueOf(3)),
+        max.multiply(ScaledDecimal.valueOf(3, 0)).toBigDecimal());
+    assertEquals("Incorrect negate overflow",
+        BigDecimal.valueOf(Long.MIN_VALUE).negate(),
+        min.negate().toBigDecimal());
+    assertEquals("Incorrect rescale overflow",
+        new BigDecimal("9223372036854775807.00000000000000000001"),
+        max.add(ScaledDecimal.valueOf(1, 20)).toBigDecimal());
+    assertTrue("Demoted value should be compact",
+        max.add(ScaledDecimal.ONE).subtract(ScaledDecimal.ONE).isCompact());
+  }
+
+  private BigDecimal randomNumber() {
+    final int bits = 1 + this.random.nextInt(90);
+    BigInteger unscaled = new BigInteger(bits, this.random);
+    if (this.random.nextBoolean()) {
+      unscaled = unscaled.negate();
+    }
+    return new BigDecimal(unscaled, this.random.nextInt(24));
+  }
+
+  public void testAgainstBigDecimal() {
+    for (int j = 0; j < this.TEST_ROUNDS; j++) {
+      final BigDecimal a = randomNumber();
+      final BigDecimal b = randomNumber();
+      final ScaledDecimal sa = ScaledDecimal.valueOf(a);
+      final ScaledDecimal sb = ScaledDecimal.valueOf(b);
+      assertEquals("Incorrect addition", a.add(b),
+          sa.add(sb).toBigDecimal());
+      assertEquals("Incorrect subtraction", a.subtract(b),
+          sa.subtract(sb).toBigDecimal());
+      assertEquals("Incorrect multiplication", a.multiply(b),
+          sa.multiply(sb).toBigDecimal());
+      assertEquals("Incorrect negation", a.negate(),
+          sa.negate().toBigDecimal());
+      final int newScale = this.random.nextInt(24);
+      assertEquals("Incorrect half even rescale",
+          a.setScale(newScale, RoundingMode.HALF_EVEN),
+          sa.setScale(newScale, RoundingMode.HALF_EVEN).toBigDecimal());
+      assertEquals("Incorrect half up rescale",
+          a.setScale(newScale, RoundingMode.HALF_UP),
+          sa.setScale(newScale, RoundingMode.HALF_UP).toBigDecimal());
+      assertEquals("Incorrect string round trip", sa,
+          ScaledDecimal.valueOf(a.toPlainString()));
+    }
+  }
+
+}
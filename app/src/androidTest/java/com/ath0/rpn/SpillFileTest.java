@@ -0,0 +1,109 @@
+package com.ath0.rpn.test;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.ath0.rpn.CalculatorStack;
+import com.ath0.rpn.SpillFile;
+import com.ath0.rpn.StateFile;
+
+public class SpillFileTest extends TestCase {
+
+  private SpillFile spill;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    this.spill = SpillFile.create(new File(System.getProperty(
+        "java.io.tmpdir")));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    this.spill.close();
+    super.tearDown();
+  }
+
+  /**
+   * Makes a stack keeping only a few values in memory, holding 1 to count.
+   */
+  private CalculatorStack deepStack(final int count) {
+    CalculatorStack s = new CalculatorStack();
+    s.setSpillFile(this.spill, 4);
+    for (int i = 1; i <= count; i++) {
+      s.push(Integer.toString(i));
+    }
+    return s;
+  }
+
+  private static String levels(final CalculatorStack s, final int levels) {
+    return s.toString(levels).toString().replace(",", "").replace('\n', '|');
+  }
+
+  public void testPagedBack() {
+    CalculatorStack s = deepStack(1000);
+    assertEquals("Incorrect top", "998.00|999.00|1000.00", levels(s, 3));
+    for (int i = 0; i < 990; i++) {
+      s.drop();
+    }
+    assertEquals("Incorrect values paged back", "8.00|9.00|10.00",
+        levels(s, 3));
+    s.swap();
+    s.add();
+    s.push("0.5");
+    s.multiply();
+    assertEquals("Incorrect result", "7.00|8.00|9.50", levels(s, 3));
+    for (int i = 0; i < 9; i++) {
+      s.drop();
+    }
+    assertTrue("Stack should be empty", s.isEmpty());
+  }
+
+  public void testBigValues() {
+    CalculatorStack s = new CalculatorStack();
+    s.setSpillFile(this.spill, 1);
+    s.push("123456789012345678901234567890.123456789");
+    s.push("-0.000000000000000000000000000000001");
+    s.push("9223372036854775807");
+    s.push("1");
+    s.drop();
+    s.drop();
+    assertEquals("Incorrect big values", "123456789012345678901234567890.12" +
+        "|0.00", levels(s, 2));
+    s.setScale(33);
+    assertEquals("Incorrect scale", "-0.000000000000000000000000000000001",
+        s.toString());
+  }
+
+  public void testUndo() {
+    CalculatorStack s = deepStack(10);
+    for (int i = 0; i < 8; i++) {
+      s.add();
+    }
+    assertEquals("Incorrect sum", "1.00|54.00", levels(s, 2));
+    for (int i = 0; i < 8; i++) {
+      assertTrue("Undo failed", s.undo());
+    }
+    assertEquals("Incorrect undone stack", "1.00|2.00|3.00|4.00|5.00|6.00|" +
+        "7.00|8.00|9.00|10.00", levels(s, 10));
+    assertTrue("Redo failed", s.redo());
+    assertEquals("Incorrect redone top", "19.00", s.toString());
+  }
+
+  public void testSave() throws IOException {
+    CalculatorStack s = deepStack(5000);
+    File file = File.createTempFile("state", null);
+    try {
+      StateFile.write(file, s, "");
+      CalculatorStack r = new CalculatorStack();
+      StateFile.read(file, r);
+      assertEquals("Incorrect restored stack", levels(s, 5000),
+          levels(r, 5000));
+    } finally {
+      file.delete();
+    }
+  }
+
+}
@@ -0,0 +1,107 @@
+package com.ath0.rpn.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import junit.framework.TestCase;
+
+import com.ath0.rpn.CalculatorStack;
+import com.ath0.rpn.InputBuffer;
+import com.ath0.rpn.Macro;
+import com.ath0.rpn.StateFile;
+
+public class StateFileTest extends TestCase {
+
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    this.file = File.createTempFile("state", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    this.file.delete();
+    super.tearDown();
+  }
+
+  static CalculatorStack sampleStack() {
+    CalculatorStack s = new CalculatorStack();
+    s.setScale(5);
+    s.push("0");
+    s.push("-1");
+    s.push("127");
+    s.push("-128");
+    s.push("9223372036854775807");
+    s.push("-9223372036854775808");
+    s.push("123456789012345678901234567890.123456789");
+    s.push("-0.000000000000000000000000000000001");
+    s.push("1.5");
+    s.multiply();
+    return s;
+  }
+
+  public void testRoundTrip() throws IOException {
+    CalculatorStack s = sampleStack();
+    StateFile.write(this.file, s, "12.3");
+    CalculatorStack r = new CalculatorStack();
+    r.push("99");
+    assertEquals("Incorrect restored input", "12.3",
+        StateFile.read(this.file, r));
+    assertEquals("Incorrect restored stack", s.toString(9).toString(),
+        r.toString(9).toString());
+    assertEquals("Incorrect restored scale", 5, r.getScale());
+  }
+
+  public void testEmpty() throws IOException {
+    CalculatorStack s = new CalculatorStack();
+    StateFile.write(this.file, s, "");
+    CalculatorStack r = new CalculatorStack();
+    assertEquals("Incorrect restored input", "", StateFile.read(this.file, r));
+    assertTrue("Restored stack should be empty", r.isEmpty());
+  }
+
+  public void testMacros() throws IOException {
+    CalculatorStack s = new CalculatorStack();
+    s.setMacros(new Macro[] {Macro.compile("1.15 *"),
+        Macro.compile("dup * 3.14159 *")});
+    StateFile.write(this.file, s, "");
+    CalculatorStack r = new CalculatorStack();
+    StateFile.read(this.file, r);
+    Macro[] macros = r.getMacros();
+    assertEquals("Incorrect number of macros", 2, macros.length);
+    assertEquals("Incorrect macro", "1.15 *", macros[0].getText());
+    assertEquals("Incorrect macro", "dup * 3.14159 *", macros[1].getText());
+  }
+
+  public void testMigration() throws IOException {
+    CalculatorStack s = sampleStack();
+    ObjectOutputStream out = new ObjectOutputStream(
+        new FileOutputStream(this.file));
+    out.writeObject(s);
+    out.writeObject(new InputBuffer("42"));
+    out.close();
+    CalculatorStack r = new CalculatorStack();
+    assertEquals("Incorrect migrated input", "42",
+        StateFile.read(this.file, r));
+    assertEquals("Incorrect migrated stack", s.toString(9).toString(),
+        r.toString(9).toString());
+    assertEquals("Incorrect migrated scale", 5, r.getScale());
+  }
+
+  public void testCorrupt() throws IOException {
+    FileOutputStream out = new FileOutputStream(this.file);
+    out.write(new byte[] {'R', 'P', 'N', 1, 5, 0, 8, 1});
+    out.close();
+    try {
+      StateFile.read(this.file, new CalculatorStack());
+      fail("Truncated state file should fail");
+    } catch (IOException ex) {
+      // Expected
+    }
+  }
+
+}
@@ -1,5 +1,7 @@
 package com.ath0.rpn;
 
+import java.util.HashMap;
+
 import android.content.Context;
 import android.content.res.AssetManager;
 import android.graphics.Typeface;
@@ -21,7 +23,15 @@ import android.widget.GridLayout;
  */
 public class CalculatorKeyLayout extends GridLayout implements OnTouchListener {
 
+	// Fonts loaded from assets, kept for the life of the process. Loading a
+	// font copies and parses the whole file, so it's done once per font
+	// rather than on each measure.
+	private static final HashMap<String, Typeface> TYPEFACES =
+	    new HashMap<String, Typeface>();
+
 	private final Context mycontext;
+	// The width the keys were last sized for, or -1 if they haven't been.
+	private int keyboardWidth = -1;
 
 	// We make all the constructors store the context, as we need it later on 
 	// to load fonts.
@@ -41,16 +51,46 @@ public class CalculatorKeyLayout extends GridLayout implements OnTouchListener {
 		this.mycontext = context;
 	}
 	
+	/**
+	 * Binds each key to its code from Keys, replacing the tag it was given in
+	 * the layout XML, so that presses can be dispatched without looking at
+	 * strings.
+	 */
+	@Override
+	protected void onFinishInflate() {
+	  super.onFinishInflate();
+	  for (int i = 0; i < getChildCount(); i++) {
+	    final View key = getChildAt(i);
+	    final int code = Keys.forTag((String) key.getTag());
+	    if (code == Keys.NONE) {
+	      throw new IllegalStateException("Unknown key " + key.getTag());
+	    }
+	    key.setTag(Integer.valueOf(code));
+	  }
+	}
+
 	/**
 	 * Catch the measurement of the keyboard, and use the width we are given to
 	 * fix up the size of the buttons. This used to be in the onSizeChanged event,
 	 * but that caused visual glitching after the speed improvements in
 	 * Android 4.1 started to allow the phone to draw the unresized buttons before
 	 * the resize code had a chance to run. 
+	 * Measuring happens several times per layout, so the keys are only resized
+	 * when the width changes.
 	 */
 	@Override
   protected void onMeasure (final int widthMeasureSpec, final int heightMeasureSpec) {
 	  int width = MeasureSpec.getSize(widthMeasureSpec);
+	  if (width != this.keyboardWidth) {
+	    logMeasureSpec(width, heightMeasureSpec);
+	    resizeKeys(width);
+	    this.keyboardWidth = width;
+	  }
+	  super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+	}
+
+	private static void logMeasureSpec(final int width,
+	    final int heightMeasureSpec) {
 	  int height = MeasureSpec.getSize(heightMeasureSpec);
 	  Log.d("onMeasure", "width = " + width);
 	  Log.d("onMeasure", "height = " + height);
@@ -62,8 +102,22 @@ public class CalculatorKeyLayout extends GridLayout implements OnTouchListener {
 	  } else {
 	    Log.d("onMeasure", "mode = UNSPECIFIED");
 	  }
-	  resizeKeys(width);
-	  super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+	}
+
+	/**
+	 * Returns a font from the app's assets, loading it the first time it's
+	 * asked for.
+	 */
+	private static Typeface typeface(final AssetManager assets,
+	    final String path) {
+	  synchronized (TYPEFACES) {
+	    Typeface font = TYPEFACES.get(path);
+	    if (font == null) {
+	      font = Typeface.createFromAsset(assets, path);
+	      TYPEFACES.put(path, font);
+	    }
+	    return font;
+	  }
 	}
 	
 	private void resizeKeys(final int keyboardWidth) {
@@ -79,10 +133,9 @@ public class CalculatorKeyLayout extends GridLayout implements OnTouchListener {
 	    // http://users.teilar.gr/~g1951d/
 	    // It's used to provide the Unicode characters required for the square 
 	    // root, reciprocal, delete and raise-to-power keys.
-	    final Typeface rpnfont = Typeface.createFromAsset(assets, "fonts/RPN.TTF");
+	    final Typeface rpnfont = typeface(assets, "fonts/RPN.TTF");
 	    // Roboto, of course, is Google's new font for Android 4 apps.
-	    final Typeface roboto = 
-	        Typeface.createFromAsset(assets, "fonts/Roboto-Light.ttf");
+	    final Typeface roboto = typeface(assets, "fonts/Roboto-Light.ttf");
 	    // Now run through all the buttons, resizing them and applying the fonts.
 	    for(int i = 0; i < getChildCount(); i++) {
 	      final Button key = (Button) getChildAt(i);
@@ -1,12 +1,19 @@
 package com.ath0.rpn;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.math.MathContext;
 import java.math.RoundingMode;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.Stack;
-
-import android.util.Log;
+import java.util.concurrent.CancellationException;
 
 /**
  * Model for RPN calculator. 
@@ -24,17 +31,104 @@ public class CalculatorStack implements Serializable {
    */
   private static final long serialVersionUID = 1L;
 
-  // Number of characters to preallocate when converting a stack value into a 
-  // string or storing input from user.
-  private static final int TYPICAL_LENGTH = 32;
-  // 4x the above
+  // Number of characters to preallocate when converting the stack into a
+  // string.
   private static final int TYPICAL_LENGTH_X4 = 128;
 
   // How many digits of precision (decimal places) are used internally in 
   // calculations.
   private static final int INTERNAL_SCALE = 32;
 
-  private final Stack<BigDecimal> stack;
+  // Default limit on the number of digits an exact integer power may
+  // produce. The time taken grows faster than linearly with the number of
+  // digits, so this also bounds the time taken.
+  private static final int DEFAULT_POWER_LIMIT = 100000;
+
+  // Extra digits of precision carried when a power is computed to bounded
+  // precision, to absorb the rounding error of each multiplication.
+  private static final int GUARD_DIGITS = 10;
+
+  // Default memory budget for the undo and redo history, in bytes.
+  private static final long DEFAULT_HISTORY_LIMIT = 1024 * 1024;
+
+  // Rough size in memory of an entry in the history, besides the values it
+  // keeps.
+  private static final int VERSION_BYTES = 48;
+
+  // Default number of values kept in memory when the stack has a spill
+  // file.
+  private static final int DEFAULT_SPILL_KEEP = 1024;
+
+  // log10(2), for estimating the size of results.
+  private static final double LOG10_2 = 0.30102999566398119521;
+
+  // Operations which may be slow, and so can be prepared on the stack, run
+  // elsewhere, and then completed.
+  public static final int OP_POWER = 1;
+  public static final int OP_DIVIDE = 2;
+  public static final int OP_RECIPROCAL = 3;
+  public static final int OP_SQRT = 4;
+
+  // Quick changes to the stack, as recorded in a Journal.
+  static final int EDIT_CHS = 1;
+  static final int EDIT_DROP = 2;
+  static final int EDIT_DUP = 3;
+  static final int EDIT_SWAP = 4;
+  static final int EDIT_ADD = 5;
+  static final int EDIT_SUBTRACT = 6;
+  static final int EDIT_MULTIPLY = 7;
+  static final int EDIT_CLEAR = 8;
+
+  // Results are capped at the internal scale, and whole numbers are kept
+  // exact at scale 0, so that long chains of operations don't slow down.
+  private static final ScalePolicy DEFAULT_POLICY =
+      new ScalePolicy(INTERNAL_SCALE, true);
+
+  private static final Macro[] NO_MACROS = new Macro[0];
+
+  /**
+   * Serialized form. The stack is saved as a java.util.Stack of BigDecimal
+   * values, as it was before ValueStack, so that saved state can be read by
+   * both old and new versions.
+   */
+  private static final ObjectStreamField[] serialPersistentFields = {
+    new ObjectStreamField("stack", Stack.class),
+    new ObjectStreamField("scale", Integer.TYPE)
+  };
+
+  private transient ValueStack stack;
+
+  private transient ScalePolicy policy = DEFAULT_POLICY;
+
+  private transient int powerLimit = DEFAULT_POWER_LIMIT;
+
+  // Incremented on every change to the values or display scale.
+  private transient int modifications;
+
+  // Where changes are recorded, if anywhere.
+  private transient Journal journal;
+
+  // Formats values for display, made when first needed.
+  private transient NumberFormatter formatter;
+
+  // Earlier versions of the stack, oldest first, and undone versions, most
+  // recently undone last.
+  private transient ArrayDeque<Version> undo;
+  private transient ArrayDeque<Version> redo;
+  // Rough memory used by the history, and the most it may use.
+  private transient long historyBytes;
+  private transient long historyLimit = DEFAULT_HISTORY_LIMIT;
+  // The values as they were after the last change, and the memory the
+  // stack had allocated by then.
+  private transient ValueStack.Node previous;
+  private transient long previousAllocated;
+  private transient int previousScale;
+  // Whether a program is being evaluated, so its changes are kept in the
+  // history as one.
+  private transient boolean batch;
+
+  // Recorded keystroke macros, saved along with the stack.
+  private transient Macro[] macros = NO_MACROS;
 
   // Initial scale is 2 decimal places, as that's the most useful for general 
   // everyday calculations.
@@ -42,7 +136,27 @@ public class CalculatorStack implements Serializable {
 
   public CalculatorStack() {
     super();
-    this.stack = new Stack<BigDecimal>();
+    this.stack = new ValueStack();
+    clearHistory();
+  }
+
+  /**
+   * A version of the stack kept in the undo or redo history.
+   */
+  private static final class Version {
+
+    final ValueStack.Node values;
+    final int scale;
+    // Rough memory kept by this version and not the one after it.
+    final long cost;
+
+    Version(final ValueStack.Node values, final int scale,
+        final long cost) {
+      super();
+      this.values = values;
+      this.scale = scale;
+      this.cost = cost;
+    }
   }
 
   /**
@@ -51,8 +165,38 @@ public class CalculatorStack implements Serializable {
    * InputBuffer.
    */
   public void push(final String number) {
-    final BigDecimal newnum = new BigDecimal(number);
-    this.stack.push(newnum);
+    push(ScaledDecimal.valueOf(number));
+  }
+
+  /**
+   * Pushes an already-parsed value onto the stack.
+   * @param number the value to push
+   */
+  void push(final ScaledDecimal number) {
+    this.stack.push(number);
+    if (this.journal != null) {
+      this.journal.push(number);
+    }
+    changed();
+  }
+
+  /**
+   * Pushes many values onto the stack at once, such as a column of numbers
+   * imported from elsewhere. They count as a single change for undo.
+   * @param values the values, from the bottom up
+   * @param count the number of values to push, from the start of the array
+   */
+  public void pushAll(final ScaledDecimal[] values, final int count) {
+    if (count == 0) {
+      return;
+    }
+    for (int i = 0; i < count; i++) {
+      this.stack.push(values[i]);
+      if (this.journal != null) {
+        this.journal.push(values[i]);
+      }
+    }
+    changed();
   }
 
   /**
@@ -63,7 +207,268 @@ public class CalculatorStack implements Serializable {
   }
 
   /**
-   * Gets the contents of the stack as a string.
+   * Returns the number of values on the stack.
+   */
+  int size() {
+    return this.stack.size();
+  }
+
+  /**
+   * Returns the values on the stack, from the bottom up.
+   */
+  ScaledDecimal[] toArray() {
+    return this.stack.toArray();
+  }
+
+  /**
+   * Returns the values on the stack, from the bottom up, without reading
+   * them all into memory at once. Changes made to the stack afterwards are
+   * not seen.
+   */
+  Iterator<ScaledDecimal> values() {
+    return this.stack.iterator();
+  }
+
+  /**
+   * Keeps only the values near the top of the stack in memory, and spills
+   * the rest to a file, so that a very deep stack, such as a long column of
+   * imported numbers, doesn't use up memory. Values are read back as
+   * operations reach them. If the file can't be written, values are kept
+   * in memory as usual. The file can't be changed once set, and is shared
+   * with snapshots of the stack.
+   */
+  public void setSpillFile(final SpillFile file) {
+    setSpillFile(file, DEFAULT_SPILL_KEEP);
+  }
+
+  /**
+   * Keeps only a given number of values near the top of the stack in
+   * memory, and spills the rest to a file; see setSpillFile(SpillFile).
+   * Between that number and twice as many values are kept in memory.
+   * @param keep the number of values to keep, at least 1
+   */
+  public void setSpillFile(final SpillFile file, final int keep) {
+    this.stack.spillTo(file, keep);
+  }
+
+  /**
+   * Removes all values from the stack.
+   */
+  void clear() {
+    this.stack.clear();
+    changed(EDIT_CLEAR);
+  }
+
+  /**
+   * Records a change to the stack.
+   * @param edit one of the EDIT_ constants
+   */
+  private void changed(final int edit) {
+    if (this.journal != null) {
+      this.journal.edit(edit);
+    }
+    changed();
+  }
+
+  /**
+   * Counts a change to the stack, and keeps the version before it in the
+   * undo history.
+   */
+  private void changed() {
+    this.modifications++;
+    if (!this.batch) {
+      remember();
+    }
+  }
+
+  /**
+   * Keeps the version before the changes made since the last call in the
+   * undo history.
+   */
+  private void remember() {
+    if (this.historyLimit > 0) {
+      final long allocated = this.stack.allocated();
+      this.undo.addLast(new Version(this.previous, this.previousScale,
+          VERSION_BYTES + allocated - this.previousAllocated));
+      this.historyBytes += this.undo.peekLast().cost;
+      if (!this.redo.isEmpty()) {
+        for (final Version v : this.redo) {
+          this.historyBytes -= v.cost;
+        }
+        this.redo.clear();
+      }
+      trimHistory();
+    }
+    this.previous = this.stack.version();
+    this.previousAllocated = this.stack.allocated();
+    this.previousScale = this.scale;
+  }
+
+  /**
+   * Forgets the oldest versions in the history until it fits in its memory
+   * budget.
+   */
+  private void trimHistory() {
+    while (this.historyBytes > this.historyLimit) {
+      final Version v = this.undo.isEmpty() ? this.redo.pollFirst() :
+          this.undo.pollFirst();
+      if (v == null) {
+        break;
+      }
+      this.historyBytes -= v.cost;
+    }
+  }
+
+  /**
+   * Forgets all undo and redo history.
+   */
+  void clearHistory() {
+    this.undo = new ArrayDeque<Version>();
+    this.redo = new ArrayDeque<Version>();
+    this.historyBytes = 0;
+    this.previous = this.stack.version();
+    this.previousAllocated = this.stack.allocated();
+    this.previousScale = this.scale;
+  }
+
+  /**
+   * Sets the memory budget for the undo and redo history. Once it is used
+   * up, the oldest versions are forgotten. Each version costs roughly the
+   * memory taken by the values its change created; values it shares with
+   * other versions are not counted again. The budget is not saved with the
+   * stack.
+   * @param bytes the budget, or 0 to keep no history
+   */
+  public void setHistoryLimit(final long bytes) {
+    this.historyLimit = bytes;
+    trimHistory();
+  }
+
+  /**
+   * Returns whether there is a change which can be undone.
+   */
+  public boolean canUndo() {
+    return !this.undo.isEmpty();
+  }
+
+  /**
+   * Returns whether there is an undone change which can be redone.
+   */
+  public boolean canRedo() {
+    return !this.redo.isEmpty();
+  }
+
+  /**
+   * Puts the stack and display scale back as they were before the last
+   * change which hasn't been undone.
+   * @return false if there was nothing to undo
+   */
+  public boolean undo() {
+    final Version v = this.undo.pollLast();
+    if (v == null) {
+      return false;
+    }
+    this.redo.addLast(new Version(this.stack.version(), this.scale, v.cost));
+    restore(v);
+    return true;
+  }
+
+  /**
+   * Makes the last change which was undone again.
+   * @return false if there was nothing to redo
+   */
+  public boolean redo() {
+    final Version v = this.redo.pollLast();
+    if (v == null) {
+      return false;
+    }
+    this.undo.addLast(new Version(this.stack.version(), this.scale, v.cost));
+    restore(v);
+    return true;
+  }
+
+  /**
+   * Switches to a version from the history.
+   */
+  private void restore(final Version v) {
+    switchTo(v.values, v.scale);
+    this.modifications++;
+    this.previous = this.stack.version();
+    this.previousAllocated = this.stack.allocated();
+    this.previousScale = this.scale;
+  }
+
+  /**
+   * Switches to another version of the values, which may share values with
+   * this one, and a display scale. Only the values which differ are
+   * recorded in the journal.
+   */
+  private void switchTo(final ValueStack.Node values, final int newscale) {
+    if (this.journal != null) {
+      final int[] diff = this.stack.differences(values);
+      for (int i = 0; i < diff[0]; i++) {
+        this.journal.edit(EDIT_DROP);
+      }
+      for (final ScaledDecimal value : this.stack.toArray(values, diff[1])) {
+        this.journal.push(value);
+      }
+      if (newscale != this.scale) {
+        this.journal.scale(newscale);
+      }
+    }
+    this.stack.restore(values);
+    this.scale = newscale;
+  }
+
+  /**
+   * Makes a change recorded in a journal.
+   * @param edit one of the EDIT_ constants
+   * @return false if edit is not one of them
+   */
+  boolean replay(final int edit) {
+    switch (edit) {
+    case EDIT_CHS:
+      chs();
+      break;
+    case EDIT_DROP:
+      drop();
+      break;
+    case EDIT_DUP:
+      dup();
+      break;
+    case EDIT_SWAP:
+      swap();
+      break;
+    case EDIT_ADD:
+      add();
+      break;
+    case EDIT_SUBTRACT:
+      subtract();
+      break;
+    case EDIT_MULTIPLY:
+      multiply();
+      break;
+    case EDIT_CLEAR:
+      clear();
+      break;
+    default:
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Records all later changes to the stack in a journal.
+   * @param newjournal the journal, or null to stop recording
+   */
+  public void setJournal(final Journal newjournal) {
+    this.journal = newjournal;
+  }
+
+  /**
+   * Gets the contents of the stack as a string. Only values which have
+   * changed since they were last shown, or all of them if the display scale
+   * has changed, are formatted again.
    * @param levels the number of levels of stack to return
    * @return a text representation of the stack
    */
@@ -77,16 +482,49 @@ public class CalculatorStack implements Serializable {
         }
         final int idx = depth - levels + i;
         if (idx >= 0) {
-          result.append(formatNumber(this.stack.get(idx)));
+          result.append(formatLevel(levels - 1 - i));
         }
       }
     }
     return result;
   }
 
+  /**
+   * Gets the text of the top levels of the stack, one line per level, for a
+   * display which lays out each line itself. Text is cached as for
+   * toString(int).
+   * @param lines receives the lines, with the top of the stack last; the
+   * lines for levels below the bottom of the stack are empty
+   * @param levels the number of levels, filled from the start of the array
+   */
+  public void getLines(final String[] lines, final int levels) {
+    final int depth = this.stack == null ? 0 : this.stack.size();
+    for (int i = 0; i < levels; i++) {
+      final int level = levels - 1 - i;
+      lines[i] = level < depth ? formatLevel(level) : "";
+    }
+  }
+
+  /**
+   * Formats the value a given number of levels below the top of the stack.
+   * The text is cached with the value, keyed on the display scale.
+   * @param depth 0 for the top value, 1 for the one below it, and so on
+   */
+  private String formatLevel(final int depth) {
+    String text = this.stack.text(depth, this.scale);
+    if (text == null) {
+      if (this.formatter == null) {
+        this.formatter = new NumberFormatter();
+      }
+      text = this.formatter.format(this.stack.peek(depth), this.scale);
+      this.stack.setText(depth, this.scale, text);
+    }
+    return text;
+  }
+
   /**
    * Get value without thousands commas for unit tests, to avoid needing to
-   * implement formatNumber there.
+   * implement number formatting there.
    */
   @Override
   public String toString() {
@@ -94,37 +532,41 @@ public class CalculatorStack implements Serializable {
   }
 
   /**
-   * Formats a BigDecimal number to a fixed number of decimal places, and adds 
-   * thousands commas.
-   * @param number
-   * @return
+   * Writes the stack in its serialized form, as a java.util.Stack of
+   * BigDecimal values.
    */
-  private String formatNumber(final BigDecimal number) {
-    final StringBuilder result = new StringBuilder(TYPICAL_LENGTH);
-    result.append(number.setScale(this.scale, 
-        RoundingMode.HALF_UP).toPlainString());
-    if (this.scale > 0) {
-      if (result.indexOf(".") == -1) {
-        result.append('.');
-      }
-      final int zerosAfterPoint = result.length() - result.indexOf(".") - 1;
-      for (int i = zerosAfterPoint; i < this.scale; i++) {
-        result.append('0');
-      }
-    }
-    // Add commas
-    int dot = result.indexOf(".");
-    if (dot < 1) {
-      dot = result.length();
+  private void writeObject(final ObjectOutputStream out) throws IOException {
+    final Stack<BigDecimal> saved = new Stack<BigDecimal>();
+    for (final Iterator<ScaledDecimal> i = values(); i.hasNext();) {
+      saved.push(i.next().toBigDecimal());
     }
-    int lowindex = 0;
-    if (result.charAt(0) == '-') {
-      lowindex = 1;
-    }
-    for (int i = dot - 3; i > lowindex; i -= 3) {
-      result.insert(i, ',');
+    final ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("stack", saved);
+    fields.put("scale", this.scale);
+    out.writeFields();
+  }
+
+  /**
+   * Reads the stack from its serialized form.
+   */
+  private void readObject(final ObjectInputStream in)
+      throws IOException, ClassNotFoundException {
+    final ObjectInputStream.GetField fields = in.readFields();
+    final Stack<?> saved = (Stack<?>) fields.get("stack", null);
+    this.scale = fields.get("scale", 2);
+    this.stack = new ValueStack();
+    this.policy = DEFAULT_POLICY;
+    this.powerLimit = DEFAULT_POWER_LIMIT;
+    if (saved != null) {
+      for (final Object value : saved) {
+        if (!(value instanceof BigDecimal)) {
+          throw new InvalidObjectException("Bad value in saved stack");
+        }
+        this.stack.push(ScaledDecimal.valueOf((BigDecimal) value));
+      }
     }
-    return result.toString();
+    this.historyLimit = DEFAULT_HISTORY_LIMIT;
+    clearHistory();
   }
 
   /**
@@ -132,8 +574,8 @@ public class CalculatorStack implements Serializable {
    */
   public void chs() {
     if (!this.stack.isEmpty()) {
-      final BigDecimal topnum = this.stack.pop();
-      this.stack.push(topnum.negate());
+      this.stack.replaceTop(this.stack.peek().negate());
+      changed(EDIT_CHS);
     }
   }
 
@@ -143,6 +585,7 @@ public class CalculatorStack implements Serializable {
   public void drop() {
     if (!this.stack.isEmpty()) {
       this.stack.pop();
+      changed(EDIT_DROP);
     }
   }
 
@@ -151,8 +594,8 @@ public class CalculatorStack implements Serializable {
    */
   public void dup() {
     if (!this.stack.isEmpty()) {
-      final BigDecimal topnum = this.stack.peek();
-      this.stack.push(topnum);
+      this.stack.push(this.stack.peek());
+      changed(EDIT_DUP);
     }
   }
 
@@ -161,82 +604,85 @@ public class CalculatorStack implements Serializable {
    */
   public void swap() {
     if (this.stack.size() > 1) {
-      final BigDecimal x = this.stack.pop();
-      final BigDecimal y = this.stack.pop();
-      this.stack.push(x);
-      this.stack.push(y);
+      this.stack.swap();
+      changed(EDIT_SWAP);
     }
   }
 
   /**
    * Adds together the top two elements on the stack, and replaces them with
    * the result.
+   * @return an error message, or null if there is no error
    */
-  public void add() {
+  public String add() {
     if (this.stack.size() > 1) {
-      final BigDecimal x = this.stack.pop();
-      final BigDecimal y = this.stack.pop();
-      final BigDecimal r = y.add(x);
-      this.stack.push(r);
+      final ScaledDecimal x = this.stack.peek();
+      final ScaledDecimal y = this.stack.peek(1);
+      final ScaledDecimal result;
+      try {
+        checkSumLength(x, y);
+        result = this.policy.apply(y.add(x));
+      } catch (ArithmeticException ex) {
+        return ex.getMessage();
+      }
+      this.stack.collapse(result);
+      changed(EDIT_ADD);
     }
+    return null;
   }
 
   /**
    * Subtracts the top number on the stack from the number beneath it, and 
    * replaces them both with the result.
+   * @return an error message, or null if there is no error
    */
-  public void subtract() {
+  public String subtract() {
     if (this.stack.size() > 1) {
-      BigDecimal x = this.stack.pop();
-      BigDecimal y = this.stack.pop();
-      BigDecimal r = y.subtract(x);
-      this.stack.push(r);
+      final ScaledDecimal x = this.stack.peek();
+      final ScaledDecimal y = this.stack.peek(1);
+      final ScaledDecimal result;
+      try {
+        checkSumLength(x, y);
+        result = this.policy.apply(y.subtract(x));
+      } catch (ArithmeticException ex) {
+        return ex.getMessage();
+      }
+      this.stack.collapse(result);
+      changed(EDIT_SUBTRACT);
     }
+    return null;
   }
 
   /**
    * Multiplies the top two numbers on the stack together, and replaces them 
    * with the result.
+   * @return an error message, or null if there is no error
    */
-  public void multiply() {
+  public String multiply() {
     if (this.stack.size() > 1) {
-      BigDecimal x = this.stack.pop();
-      BigDecimal y = this.stack.pop();
-      BigDecimal r = y.multiply(x);
-      this.stack.push(r);
+      final ScaledDecimal x = this.stack.peek();
+      final ScaledDecimal y = this.stack.peek(1);
+      final ScaledDecimal result;
+      try {
+        result = checkLength(this.policy.apply(y.multiply(x)));
+      } catch (ArithmeticException ex) {
+        return ex.getMessage();
+      }
+      this.stack.collapse(result);
+      changed(EDIT_MULTIPLY);
     }
+    return null;
   }
   
   /**
-   * Takes the top item on the stack, and uses its integer value as the power
-   * for raising the number beneath it.
+   * Takes the top item on the stack, and uses it as the power for raising
+   * the number beneath it. Powers which aren't integers are computed to the
+   * INTERNAL_SCALE.
    * e.g. before:  X Y  after: X^Y   before: 2 3  after: 8
    * @return an error message, or null if there is no error
    */
-  // Returns error message, or null if no error.
   public String power() {
-    String result = null;
-    if (this.stack.size() > 1) {
-      BigDecimal y = this.stack.pop();
-      BigDecimal x = this.stack.pop();
-      try {
-        BigDecimal r;
-        try {
-          // Try an exact approach first
-          int yi = y.intValueExact();
-          Log.d("power", "Computed power exactly");
-          r = x.pow(yi);
-        } catch (ArithmeticException ex) {
-          // If we can't compute it exactly, compute an approximate value
-          r = approxPow(x,y);
-          Log.d("power", "Computed power approximately");
-        }
-        this.stack.push(r);
-      } catch (RuntimeException e) {
-        result = e.getMessage();
-      }
-    }
-    return result;
+    return perform(OP_POWER);
   }
 
   /**
@@ -246,21 +692,7 @@ public class CalculatorStack implements Serializable {
    * @return an error message, or null if there is no error
    */
   public String divide() {
-    String result = null;
-    if (this.stack.size() > 1) {
-      BigDecimal x = this.stack.pop();
-      BigDecimal y = this.stack.pop();
-      // We use HALF_EVEN rounding because this statistically minimizes 
-      // cumulative error during repeated calculations.
-      try {
-        BigDecimal r = y.divide(x, INTERNAL_SCALE,
-            RoundingMode.HALF_EVEN);
-        this.stack.push(r);
-      } catch (ArithmeticException e) {
-        result = e.getMessage();
-      }
-    }
-    return result;
+    return perform(OP_DIVIDE);
   }
 
   /**
@@ -269,18 +701,277 @@ public class CalculatorStack implements Serializable {
    * @return an error message, or null if there is no error
    */
   public String reciprocal() {
-    String result = null;
-    if (!this.stack.isEmpty()) {
-      BigDecimal x = this.stack.pop();
-      try {
-        BigDecimal y = BigDecimal.ONE.divide(x, INTERNAL_SCALE, 
-            RoundingMode.HALF_EVEN);
-        this.stack.push(y);
-      } catch (ArithmeticException e) {
-        result = e.getMessage();
+    return perform(OP_RECIPROCAL);
+  }
+
+  /**
+   * Computes the square root of the value on the top of the stack, and
+   * replaces that value with the result.
+   * @return an error message, or null if there is no error
+   */
+  public String sqrt() {
+    return perform(OP_SQRT);
+  }
+
+  /**
+   * Performs the operation of a calculator key, as if nothing were being
+   * typed: enter duplicates the top value, and backspace drops it. Slow
+   * operations run on the current thread.
+   * @param key one of the Keys codes, other than a digit or decimal point
+   * @return an error message, or null if there is no error
+   */
+  public String operate(final int key) {
+    switch (key) {
+    case Keys.ADD:
+      return add();
+    case Keys.SUBTRACT:
+      return subtract();
+    case Keys.MULTIPLY:
+      return multiply();
+    case Keys.DIVIDE:
+      return divide();
+    case Keys.POWER:
+      return power();
+    case Keys.RECIPROCAL:
+      return reciprocal();
+    case Keys.SQRT:
+      return sqrt();
+    case Keys.CHS:
+      chs();
+      break;
+    case Keys.SWAP:
+      swap();
+      break;
+    case Keys.ENTER:
+      dup();
+      break;
+    case Keys.DROP:
+    case Keys.BACKSPACE:
+      drop();
+      break;
+    case Keys.SET_SCALE:
+      setScale();
+      break;
+    default:
+      throw new IllegalArgumentException("Not an operation: " + key);
+    }
+    return null;
+  }
+
+  /**
+   * Evaluates an RPN program in one pass, such as "3 4 + 5 *" or a whole
+   * worksheet pasted from elsewhere; see Tokenizer for the syntax. The
+   * program counts as a single change for undo. Evaluation stops at the
+   * first error, keeping the changes made before it. A long program can be
+   * run in the background instead; see prepareProgram().
+   * @param program the text of the program
+   * @return an error message, or null if there is no error
+   * @throws CancellationException if the thread is interrupted
+   */
+  public String evaluate(final CharSequence program) {
+    final Tokenizer tokens = new Tokenizer(program);
+    final int before = beginBatch();
+    String error = null;
+    try {
+      while (error == null) {
+        checkCancelled();
+        final int token = tokens.next();
+        if (token == Tokenizer.END) {
+          break;
+        } else if (token == Tokenizer.NUMBER) {
+          try {
+            push(ScaledDecimal.valueOf(tokens.number()));
+          } catch (NumberFormatException ex) {
+            error = "Invalid number " + tokens.token();
+          }
+        } else if (token == Tokenizer.KEY) {
+          error = operate(tokens.key());
+        } else {
+          error = "Unknown operation " + tokens.token();
+        }
       }
+    } finally {
+      endBatch(before);
     }
-    return result;
+    return error;
+  }
+
+  /**
+   * Runs a recorded macro. Its numbers were parsed when it was compiled, so
+   * each step is a push or a single switch. Like a program, the macro
+   * counts as a single change for undo, and stops at the first error. A
+   * long macro can be run in the background instead; see prepareMacro().
+   * @return an error message, or null if there is no error
+   * @throws CancellationException if the thread is interrupted
+   */
+  public String run(final Macro macro) {
+    final int[] ops = macro.ops;
+    final ScaledDecimal[] constants = macro.constants;
+    final int before = beginBatch();
+    String error = null;
+    try {
+      for (int i = 0; i < ops.length && error == null; i++) {
+        checkCancelled();
+        final int op = ops[i];
+        if (op < 0) {
+          push(constants[-1 - op]);
+        } else {
+          error = operate(op);
+        }
+      }
+    } finally {
+      endBatch(before);
+    }
+    return error;
+  }
+
+  /**
+   * Starts keeping changes together as one in the undo history.
+   * @return the modification count, to be passed to endBatch()
+   */
+  private int beginBatch() {
+    this.batch = true;
+    return this.modifications;
+  }
+
+  /**
+   * Stops keeping changes together, and keeps the version from before them
+   * in the undo history if there were any.
+   */
+  private void endBatch(final int before) {
+    this.batch = false;
+    if (this.modifications != before) {
+      remember();
+    }
+  }
+
+  /**
+   * Returns the recorded macros, oldest first.
+   */
+  public Macro[] getMacros() {
+    return this.macros.clone();
+  }
+
+  /**
+   * Replaces the recorded macros, which are saved along with the stack.
+   * Macros are not part of the undo history.
+   * @param newmacros the macros, oldest first
+   */
+  public void setMacros(final Macro[] newmacros) {
+    this.macros = newmacros.length == 0 ? NO_MACROS : newmacros.clone();
+    if (this.journal != null) {
+      this.journal.macros(this.macros);
+    }
+    this.modifications++;
+  }
+
+  /**
+   * Takes the operands for a potentially slow operation from the top of the
+   * stack, without removing them. The operation can then be run on any
+   * thread. The stack must not be changed until the operation has been
+   * passed back to complete().
+   * @param op one of the OP_ constants
+   * @return the operation, or null if there are too few values on the stack
+   */
+  public PendingOperation prepare(final int op) {
+    final int arity = (op == OP_POWER || op == OP_DIVIDE) ? 2 : 1;
+    if (this.stack.size() < arity) {
+      return null;
+    }
+    return new PendingOperation(op, arity, this.stack.peek(),
+        arity > 1 ? this.stack.peek(1) : null, this.policy, this.powerLimit);
+  }
+
+  /**
+   * Replaces the operands of an operation which has been run with its
+   * result. If the operation failed, the stack is left unchanged.
+   * @param op an operation from prepare(), which has been run
+   * @return an error message, or null if there is no error
+   */
+  public String complete(final PendingOperation op) {
+    if (op.result != null) {
+      replaceTop(op.arity, op.result);
+    }
+    return op.error;
+  }
+
+  /**
+   * Prepares to evaluate an RPN program, as evaluate() does, on a copy of
+   * the stack, so that it can be run on a background thread. This stack is
+   * only changed when the program is completed.
+   * @param program the text of the program
+   */
+  public PendingProgram prepareProgram(final CharSequence program) {
+    return new PendingProgram(workingCopy(), program.toString(), null);
+  }
+
+  /**
+   * Prepares to run a recorded macro, as run() does, on a copy of the stack,
+   * so that it can be run on a background thread like a program.
+   * @param macro the macro to run
+   */
+  public PendingProgram prepareMacro(final Macro macro) {
+    return new PendingProgram(workingCopy(), null, macro);
+  }
+
+  /**
+   * Replaces the stack's values and display scale with those left by a
+   * program which has been run, as a single change. If the program failed,
+   * the changes it made before the error are kept, as for evaluate().
+   * @param program a program from prepareProgram(), which has been run
+   * @return an error message, or null if there is no error
+   */
+  public String complete(final PendingProgram program) {
+    final CalculatorStack result = program.copy;
+    final ValueStack.Node values = result.stack.version();
+    if (values != this.stack.version() || result.scale != this.scale) {
+      switchTo(values, result.scale);
+      changed();
+    }
+    return program.error;
+  }
+
+  /**
+   * Returns a copy of the stack for a program to change on a background
+   * thread. It keeps no history, and never writes to the spill file, which
+   * this stack may be appending to by the time a cancelled program stops.
+   */
+  private CalculatorStack workingCopy() {
+    final CalculatorStack copy = snapshot();
+    copy.stack = this.stack.memoryCopy();
+    copy.clearHistory();
+    copy.setHistoryLimit(0);
+    return copy;
+  }
+
+  /**
+   * Replaces the top values on the stack with the result of an operation.
+   * @param arity the number of values to replace, 1 or 2
+   * @param result the value to replace them with
+   */
+  void replaceTop(final int arity, final ScaledDecimal result) {
+    if (arity > 1) {
+      this.stack.collapse(result);
+    } else {
+      this.stack.replaceTop(result);
+    }
+    if (this.journal != null) {
+      this.journal.result(arity, result);
+    }
+    changed();
+  }
+
+  /**
+   * Runs an operation immediately on the current thread.
+   * @return an error message, or null if there is no error
+   */
+  private String perform(final int op) {
+    final PendingOperation pending = prepare(op);
+    if (pending == null) {
+      return null;
+    }
+    pending.run();
+    return complete(pending);
   }
 
   /**
@@ -290,6 +981,10 @@ public class CalculatorStack implements Serializable {
    */
   public void setScale(final int newscale) {
     this.scale = newscale;
+    if (this.journal != null) {
+      this.journal.scale(newscale);
+    }
+    changed();
   }
 
   /**
@@ -298,14 +993,82 @@ public class CalculatorStack implements Serializable {
    */
   public void setScale() {
     if (!this.stack.isEmpty()) {
-      BigDecimal x = this.stack.pop();
+      BigDecimal x = this.stack.pop().toBigDecimal();
+      if (this.journal != null) {
+        this.journal.edit(EDIT_DROP);
+      }
       int sc = x.intValue();
       if (sc < INTERNAL_SCALE) {
-        setScale(sc);
+        this.scale = sc;
+        if (this.journal != null) {
+          this.journal.scale(sc);
+        }
       }
+      changed();
     }
   }
 
+  /**
+   * Sets the policy used to limit the scale of results. The policy is not
+   * saved with the stack.
+   * @param newpolicy the new policy
+   */
+  public void setScalePolicy(final ScalePolicy newpolicy) {
+    this.policy = newpolicy;
+  }
+
+  /**
+   * Gets the policy used to limit the scale of results.
+   */
+  public ScalePolicy getScalePolicy() {
+    return this.policy;
+  }
+
+  /**
+   * Sets the limit on the size of integer powers. A power whose exact value
+   * would have more digits than this is computed to the INTERNAL_SCALE
+   * instead, and a power whose integer part alone would have more digits
+   * than this is refused with an error, as is any result longer than
+   * ScaledDecimal.MAX_LENGTH digits. The limit is not saved with the
+   * stack.
+   * @param digits the maximum number of digits
+   */
+  public void setPowerLimit(final int digits) {
+    this.powerLimit = digits;
+  }
+
+  /**
+   * Gets the limit on the number of digits in integer powers.
+   */
+  public int getPowerLimit() {
+    return this.powerLimit;
+  }
+
+  /**
+   * Returns a count of the changes made to the stack's values and display
+   * scale, so that callers can tell whether it has changed since they last
+   * looked, e.g. to skip saving an unchanged stack. The count is not saved,
+   * and may wrap around.
+   */
+  public int getModificationCount() {
+    return this.modifications;
+  }
+
+  /**
+   * Returns a copy of the stack's values, display scale and macros, which
+   * is not affected by later changes to this stack.
+   */
+  CalculatorStack snapshot() {
+    final CalculatorStack copy = new CalculatorStack();
+    copy.stack = this.stack.copy();
+    copy.scale = this.scale;
+    copy.policy = this.policy;
+    copy.powerLimit = this.powerLimit;
+    copy.macros = this.macros;
+    copy.clearHistory();
+    return copy;
+  }
+
   /**
    * Gets the current display scale.
    * @return
@@ -315,28 +1078,212 @@ public class CalculatorStack implements Serializable {
   }
 
   /**
-   * Computes the square root of the value on the top of the stack, and
-   * replaces that value with the result.
+   * Checks that a result is short enough to keep.
+   * @return the result
+   * @throws ArithmeticException if it would take more than
+   * ScaledDecimal.MAX_LENGTH digits to write out
    */
-  public String sqrt() {
-    String result = null;
+  private static ScaledDecimal checkLength(final ScaledDecimal result) {
+    if (result.length() > ScaledDecimal.MAX_LENGTH) {
+      throw new ArithmeticException("Result too large");
+    }
+    return result;
+  }
 
-    if (!this.stack.isEmpty()) {
-      try {
-        BigDecimal x = sqrt(this.stack.pop(), INTERNAL_SCALE);
-        this.stack.push(x);
-      } catch (RuntimeException e) {
-        result = e.getMessage();
+  /**
+   * Checks that the sum or difference of two values is short enough to
+   * compute. Lining up the decimal points of 1e199999 and 1e-199999 alone
+   * would take four hundred thousand digits.
+   * @throws ArithmeticException if it would take more than
+   * ScaledDecimal.MAX_LENGTH digits to write out
+   */
+  private static void checkSumLength(final ScaledDecimal x,
+      final ScaledDecimal y) {
+    final long integer = Math.max(x.integerDigits(), y.integerDigits()) + 1;
+    final long fraction = Math.max(x.scale(), y.scale());
+    if (Math.max(integer, 0) + Math.max(fraction, 0) >
+        ScaledDecimal.MAX_LENGTH) {
+      throw new ArithmeticException("Result too large");
+    }
+  }
+
+  /**
+   * Checks that the quotient of two values, to the INTERNAL_SCALE, is short
+   * enough to compute.
+   * @throws ArithmeticException if it would take more than
+   * ScaledDecimal.MAX_LENGTH digits to write out
+   */
+  private static void checkQuotientLength(final ScaledDecimal y,
+      final ScaledDecimal x) {
+    if (x.signum() == 0) {
+      // Left for the division to report.
+      return;
+    }
+    final long integer = y.integerDigits() - x.integerDigits() + 1;
+    if (Math.max(integer, 0) + INTERNAL_SCALE > ScaledDecimal.MAX_LENGTH) {
+      throw new ArithmeticException("Result too large");
+    }
+  }
+
+  /**
+   * Computes x^y. Integer powers are computed exactly if the result has at
+   * most limit digits; otherwise the result is computed to the
+   * INTERNAL_SCALE.
+   */
+  private static BigDecimal power(final BigDecimal x, final BigDecimal y,
+      final int limit) {
+    int yi;
+    try {
+      yi = y.intValueExact();
+    } catch (ArithmeticException ex) {
+      return realPower(x, y, limit);
+    }
+    return integerPower(x, yi, limit);
+  }
+
+  /**
+   * Computes x^y for y which doesn't fit in an int, as exp(y ln |x|), to
+   * the INTERNAL_SCALE. x may only be negative if y is a whole number.
+   * The size of the result is estimated first, as for integerPower, and
+   * the logarithm is computed to enough places that multiplying it by y
+   * still leaves an accurate result.
+   * @throws ArithmeticException if the result is too large or not real, or
+   * x is zero and y is negative
+   */
+  private static BigDecimal realPower(final BigDecimal x, final BigDecimal y,
+      final int limit) {
+    if (x.signum() == 0) {
+      if (y.signum() < 0) {
+        throw new ArithmeticException("Division by zero");
       }
+      return BigDecimal.ZERO;
     }
-    return result;
+    boolean negate = false;
+    if (x.signum() < 0) {
+      if (y.stripTrailingZeros().scale() > 0) {
+        throw new ArithmeticException("Result not real");
+      }
+      negate = y.toBigInteger().testBit(0);
+    }
+    final BigDecimal ax = x.abs();
+    if (ax.compareTo(BigDecimal.ONE) == 0) {
+      return negate ? BigDecimal.ONE.negate() : BigDecimal.ONE;
+    }
+    // Estimated number of digits before the decimal point in the result.
+    // y may be too large for a double, in which case this is infinite.
+    final double magnitude = y.doubleValue() * log10Abs(ax);
+    if (!(magnitude <= limit)) {
+      throw new ArithmeticException("Result too large");
+    }
+    if (magnitude < -(INTERNAL_SCALE + 1)) {
+      return BigDecimal.ZERO;
+    }
+    // The result is e^z, so an error in z is a relative error in the
+    // result. z needs this many decimal places, and the result this many
+    // significant digits.
+    final int digits = (int) Math.max(Math.ceil(magnitude), 0) +
+        INTERNAL_SCALE + GUARD_DIGITS;
+    final int lnScale = digits + 1 +
+        (int) Math.max(Math.ceil(log10Abs(y)), 0);
+    final BigDecimal z = y.multiply(DecimalMath.ln(ax, lnScale))
+        .setScale(digits, RoundingMode.HALF_EVEN);
+    final BigDecimal r = DecimalMath.exp(z,
+        new MathContext(digits, RoundingMode.HALF_EVEN))
+        .setScale(INTERNAL_SCALE, RoundingMode.HALF_EVEN);
+    return negate ? r.negate() : r;
   }
 
   /**
-   * Computes the square root of x to a given scale, x >= 0.
-   * Use Newton's algorithm.
-   * Taken from "Java Number Cruncher: The Java Programmer's Guide to 
-   * Numerical Computing" (Ronald Mak, 2003) http://goo.gl/CXpi2
+   * Computes x^n for integer n, using the cost of the calculation to choose
+   * a method. The exact result has about n * x.precision() digits. If that
+   * is within the limit, the power is computed exactly; negative powers are
+   * then divided into one at the INTERNAL_SCALE. Otherwise, if the result's
+   * integer part has no more than limit digits, the power is computed with
+   * just enough precision for the INTERNAL_SCALE. Otherwise the result is
+   * too large to compute.
+   * @throws ArithmeticException if the result is too large, or x is zero
+   * and n is negative
+   */
+  private static BigDecimal integerPower(final BigDecimal x, final int n,
+      final int limit) {
+    if (n == 0) {
+      return BigDecimal.ONE;
+    }
+    if (x.signum() == 0) {
+      if (n < 0) {
+        throw new ArithmeticException("Division by zero");
+      }
+      return BigDecimal.ZERO;
+    }
+    final long absn = Math.abs((long) n);
+    // Estimated number of digits before the decimal point in the result.
+    final double magnitude = n * log10Abs(x);
+    if (magnitude > limit) {
+      throw new ArithmeticException("Result too large");
+    }
+    final boolean exact = (double) x.precision() * absn <= limit;
+    MathContext mc = MathContext.UNLIMITED;
+    if (!exact) {
+      mc = new MathContext((int) Math.max(magnitude, 0) + INTERNAL_SCALE +
+          GUARD_DIGITS, RoundingMode.HALF_EVEN);
+    }
+    final BigDecimal r = powerBySquaring(x, absn, mc);
+    if (n > 0) {
+      return r;
+    }
+    return BigDecimal.ONE.divide(r, INTERNAL_SCALE, RoundingMode.HALF_EVEN);
+  }
+
+  /**
+   * Computes x^n, n >= 0, by repeated squaring, rounding each intermediate
+   * result to the given MathContext. Checks for cancellation before each
+   * squaring.
+   */
+  private static BigDecimal powerBySquaring(final BigDecimal x, final long n,
+      final MathContext mc) {
+    BigDecimal result = BigDecimal.ONE;
+    BigDecimal square = x;
+    long e = n;
+    while (true) {
+      if ((e & 1) != 0) {
+        result = result.multiply(square, mc);
+      }
+      e >>>= 1;
+      if (e == 0) {
+        return result;
+      }
+      checkCancelled();
+      square = square.multiply(square, mc);
+    }
+  }
+
+  /**
+   * Estimates log10(|x|), x != 0, from the leading bits of its unscaled
+   * value, without converting the whole value to a double.
+   */
+  private static double log10Abs(final BigDecimal x) {
+    BigInteger digits = x.unscaledValue().abs();
+    final int shift = Math.max(digits.bitLength() - Long.SIZE + 1, 0);
+    if (shift > 0) {
+      digits = digits.shiftRight(shift);
+    }
+    return Math.log10(digits.doubleValue()) + shift * LOG10_2 - x.scale();
+  }
+
+  /**
+   * Cancellation point for slow calculations, which may be running on a
+   * background thread.
+   * @throws CancellationException if the thread has been interrupted
+   */
+  static void checkCancelled() {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new CancellationException("Cancelled");
+    }
+  }
+
+  /**
+   * Computes the square root of x to a given scale, x >= 0, truncating any
+   * further digits.
    * @param x the value of x
    * @param scale the desired scale of the result
    * @return the result value
@@ -354,44 +1301,171 @@ public class CalculatorStack implements Serializable {
     // n = x*(10^(2*scale))
     BigInteger n = x.movePointRight(scale << 1).toBigInteger();
 
-    // The first approximation is the upper half of n.
-    int bits = (n.bitLength() + 1) >> 1;
-    BigInteger ix = n.shiftRight(bits);
-    BigInteger ixPrev;
+    return new BigDecimal(isqrt(n), scale);
+  }
 
-    // Loop until the approximations converge
-    // (two successive approximations are equal after rounding).
-    do {
-      ixPrev = ix;
+  /**
+   * Computes floor(sqrt(n)), n >= 0.
+   * The square root of the upper half of n's bits is found recursively,
+   * bottoming out in a hardware square root of the leading bits. Shifted
+   * into place, that is correct to a little over a quarter of n's bits, so
+   * a single Newton step at full width doubles that to the whole result,
+   * leaving at most one final correction. The recursion halves the size
+   * each time, so the total work is about that of two full width
+   * divisions.
+   * Checks for cancellation at each level.
+   */
+  private static BigInteger isqrt(final BigInteger n) {
+    final int bits = n.bitLength();
+    if (bits < Long.SIZE - 1) {
+      // Below 2^62, so (r + 1)^2 can't overflow.
+      final long v = n.longValue();
+      long r = (long) Math.sqrt((double) v);
+      // The double may be off by one either way for large v.
+      while (r * r > v) {
+        r--;
+      }
+      while ((r + 1) * (r + 1) <= v) {
+        r++;
+      }
+      return BigInteger.valueOf(r);
+    }
+    checkCancelled();
+    // Square root of a little over the top half of the bits, which is an
+    // even shift.
+    final int half = (bits >> 2) - 2;
+    final BigInteger top = isqrt(n.shiftRight(half << 1));
+    // Rounded up, this is no less than the true root, so Newton's method
+    // converges on it from above.
+    BigInteger r = top.add(BigInteger.ONE).shiftLeft(half);
+    r = r.add(n.divide(r)).shiftRight(1);
+    while (r.multiply(r).compareTo(n) > 0) {
+      r = r.subtract(BigInteger.ONE);
+    }
+    return r;
+  }
 
-      // x = (x + n/x)/2
-      ix = ix.add(n.divide(ix)).shiftRight(1);
+  /**
+   * A potentially slow operation, holding its operands and, once run, its
+   * result or error message. It shares nothing with the stack it came
+   * from, so it can be run on a background thread.
+   */
+  public static final class PendingOperation implements Runnable {
 
-      Thread.yield();
-    } while (ix.compareTo(ixPrev) != 0);
+    private final int op;
+    private final int arity;
+    // The top of the stack.
+    private final ScaledDecimal x;
+    // The value below the top, for binary operations.
+    private final ScaledDecimal y;
+    private final ScalePolicy policy;
+    private final int powerLimit;
+
+    private ScaledDecimal result;
+    private String error;
+
+    PendingOperation(final int op, final int arity, final ScaledDecimal x,
+        final ScaledDecimal y, final ScalePolicy policy,
+        final int powerLimit) {
+      super();
+      this.op = op;
+      this.arity = arity;
+      this.x = x;
+      this.y = y;
+      this.policy = policy;
+      this.powerLimit = powerLimit;
+    }
+
+    /**
+     * Computes the result. If the thread is interrupted, the operation
+     * stops early and fails with an error.
+     */
+    @Override
+    public void run() {
+      try {
+        this.result = checkLength(
+            this.policy.apply(ScaledDecimal.valueOf(compute())));
+      } catch (RuntimeException e) {
+        this.error = e.getMessage();
+      }
+    }
+
+    private BigDecimal compute() {
+      final BigDecimal bx = this.x.toBigDecimal();
+      switch (this.op) {
+      case OP_POWER:
+        return power(this.y.toBigDecimal(), bx, this.powerLimit);
+      case OP_DIVIDE:
+        checkQuotientLength(this.y, this.x);
+        // We use HALF_EVEN rounding because this statistically minimizes
+        // cumulative error during repeated calculations.
+        return this.y.toBigDecimal().divide(bx, INTERNAL_SCALE,
+            RoundingMode.HALF_EVEN);
+      case OP_RECIPROCAL:
+        checkQuotientLength(ScaledDecimal.ONE, this.x);
+        return BigDecimal.ONE.divide(bx, INTERNAL_SCALE,
+            RoundingMode.HALF_EVEN);
+      case OP_SQRT:
+        return sqrt(bx, INTERNAL_SCALE);
+      default:
+        throw new IllegalArgumentException("Unknown operation " + this.op);
+      }
+    }
+
+    /**
+     * Returns the error message, or null if there was no error.
+     */
+    public String getError() {
+      return this.error;
+    }
 
-    return new BigDecimal(ix, scale);
   }
 
   /**
-   * Compute the power x^y to a the given scale, using doubles.
-   * Loses some precision, but means y can have non integer values.
+   * An RPN program to be evaluated on a copy of a stack, holding, once run,
+   * the values it left and its error message. The program may be a recorded
+   * macro instead of text. It shares nothing with the stack it came from but
+   * values, which are immutable, so it can be run on a background thread.
    */
-  private static BigDecimal approxPow(final BigDecimal x, final BigDecimal y)
-  {
-    double d;
+  public static final class PendingProgram implements Runnable {
+
+    private final CalculatorStack copy;
+    private final String program;
+    private final Macro macro;
+    private String error;
+
+    PendingProgram(final CalculatorStack copy, final String program,
+        final Macro macro) {
+      super();
+      this.copy = copy;
+      this.program = program;
+      this.macro = macro;
+    }
 
-    // Check that |y| >= 1 for negative x.
-    if (x.signum() < 0 && y.abs().doubleValue() < 1.0) {
-      throw new IllegalArgumentException("|n| < 1");
+    /**
+     * Evaluates the program. If the thread is interrupted, evaluation stops
+     * early and fails with an error.
+     */
+    @Override
+    public void run() {
+      try {
+        if (this.macro != null) {
+          this.error = this.copy.run(this.macro);
+        } else {
+          this.error = this.copy.evaluate(this.program);
+        }
+      } catch (RuntimeException e) {
+        this.error = e.getMessage();
+      }
     }
-    // Check that y is positive or 0 for x = 0.
-    else if (x.signum() == 0 && y.signum() < 0) {
-      throw new IllegalArgumentException("n < 0");
+
+    /**
+     * Returns the error message, or null if there was no error.
+     */
+    public String getError() {
+      return this.error;
     }
 
-    d = Math.pow(x.doubleValue(), y.doubleValue());
-    return new BigDecimal(d);
   }
 
 }
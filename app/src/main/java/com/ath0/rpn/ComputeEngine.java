@@ -0,0 +1,116 @@
+package com.ath0.rpn;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Runs slow calculator operations on a background thread, so that the UI
+ * thread never blocks, and delivers the finished operation back on the UI
+ * thread. Only one operation runs at a time. An operation is usually a
+ * CalculatorStack.PendingOperation, but may be any task which keeps its
+ * own result, such as reading a file of numbers to import.
+ */
+class ComputeEngine {
+
+  /**
+   * Callback to let the activity know an operation has finished.
+   */
+  static interface OnComputed {
+
+    /**
+     * Called on the UI thread when an operation has been run. Not called
+     * for operations which were cancelled.
+     */
+    void onComputed(Runnable op);
+  }
+
+  private final ExecutorService executor =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              r.run();
+            }
+          }, "RPN compute");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final OnComputed listener;
+
+  // The operation running now, if any. Only accessed on the UI thread.
+  private Runnable pending;
+  private Future<?> future;
+
+  ComputeEngine(final OnComputed listener) {
+    super();
+    this.listener = listener;
+  }
+
+  /**
+   * Returns whether an operation is running.
+   */
+  boolean isBusy() {
+    return this.pending != null;
+  }
+
+  /**
+   * Starts running an operation in the background.
+   * Must be called on the UI thread, when no operation is running.
+   */
+  void submit(final Runnable op) {
+    this.pending = op;
+    this.future = this.executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        op.run();
+        ComputeEngine.this.handler.post(new Runnable() {
+          @Override
+          public void run() {
+            deliver(op);
+          }
+        });
+      }
+    });
+  }
+
+  private void deliver(final Runnable op) {
+    // Ignore results from operations which have since been cancelled.
+    if (this.pending == op) {
+      this.pending = null;
+      this.future = null;
+      this.listener.onComputed(op);
+    }
+  }
+
+  /**
+   * Cancels the running operation, if any. The operation's thread is
+   * interrupted, and its result will never be delivered.
+   */
+  void cancel() {
+    if (this.future != null) {
+      this.future.cancel(true);
+    }
+    this.pending = null;
+    this.future = null;
+  }
+
+  /**
+   * Cancels any running operation and stops the background thread.
+   */
+  void shutdown() {
+    cancel();
+    this.executor.shutdownNow();
+  }
+
+}
@@ -0,0 +1,127 @@
+package com.ath0.rpn;
+
+import java.math.BigInteger;
+
+/**
+ * Converts large integers to decimal digits in less than quadratic time.
+ * <p>
+ * Converting one digit at a time divides the whole number by ten for each
+ * digit, so on platforms which convert that way, a result hundreds of
+ * thousands of digits long takes minutes. Here the number is instead split
+ * in two by dividing by a power of ten with about half as many digits, and
+ * each half is converted the same way, down to pieces small enough for
+ * BigInteger.toString(). The cost is then dominated by a few large
+ * divisions. The powers used, 10^(2^k), are made by squaring, and kept for
+ * later conversions.
+ */
+final class DecimalConverter {
+
+  // Numbers with fewer bits than this are converted by BigInteger.
+  private static final int THRESHOLD_BITS = 2048;
+
+  private static final double LOG10_2 = 0.3010299956639812;
+
+  // powers[k] is 10^(2^k).
+  private static BigInteger[] powers = {BigInteger.TEN};
+
+  private DecimalConverter() {
+    super();
+  }
+
+  /**
+   * Returns an upper bound on the number of decimal digits in the magnitude
+   * of a number.
+   */
+  static int maxDigits(final BigInteger value) {
+    return (int) (value.bitLength() * LOG10_2) + 1;
+  }
+
+  /**
+   * Writes the decimal digits of a number's magnitude, with no sign or
+   * leading zeros.
+   * @param value the number
+   * @param out receives the digits from index 0, and must have room for at
+   * least maxDigits(value)
+   * @return the number of digits written
+   */
+  static int toChars(final BigInteger value, final char[] out) {
+    final BigInteger magnitude = value.abs();
+    if (magnitude.bitLength() < THRESHOLD_BITS) {
+      final String s = magnitude.toString();
+      s.getChars(0, s.length(), out, 0);
+      return s.length();
+    }
+    return write(magnitude, out, 0, 0);
+  }
+
+  /**
+   * Returns the decimal representation of a number, as
+   * BigInteger.toString() would.
+   */
+  static String toString(final BigInteger value) {
+    if (value.bitLength() < THRESHOLD_BITS) {
+      return value.toString();
+    }
+    final char[] out = new char[maxDigits(value) + 1];
+    int start = 0;
+    if (value.signum() < 0) {
+      out[0] = '-';
+      start = 1;
+    }
+    final BigInteger magnitude = value.abs();
+    final int length = write(magnitude, out, start, 0);
+    return new String(out, 0, length);
+  }
+
+  /**
+   * Writes the digits of a non-negative number.
+   * @param pos the index to write the first digit at
+   * @param width the number of digits to write, padding with leading zeros,
+   * or 0 to write no leading zeros
+   * @return the index after the last digit
+   */
+  private static int write(final BigInteger n, final char[] out,
+      final int pos, final int width) {
+    if (n.bitLength() < THRESHOLD_BITS) {
+      final String s = n.toString();
+      int p = pos;
+      for (int i = s.length(); i < width; i++) {
+        out[p++] = '0';
+      }
+      s.getChars(0, s.length(), out, p);
+      return p + s.length();
+    }
+    // Split at 10^(2^k) for the largest 2^k below the number of digits, so
+    // the low part has 2^k digits and the high part no more.
+    final int digits = maxDigits(n);
+    int k = 0;
+    while (2 << k < digits) {
+      k++;
+    }
+    if (n.compareTo(power(k)) < 0) {
+      // The estimate of the number of digits was one too high.
+      k--;
+    }
+    final BigInteger[] parts = n.divideAndRemainder(power(k));
+    final int split = 1 << k;
+    final int p = write(parts[0], out, pos,
+        width == 0 ? 0 : width - split);
+    return write(parts[1], out, p, split);
+  }
+
+  /**
+   * Returns 10^(2^k), making and keeping any powers not made before.
+   */
+  private static synchronized BigInteger power(final int k) {
+    if (k >= powers.length) {
+      final BigInteger[] more = new BigInteger[k + 1];
+      System.arraycopy(powers, 0, more, 0, powers.length);
+      for (int i = powers.length; i <= k; i++) {
+        more[i] = more[i - 1].multiply(more[i - 1]);
+      }
+      powers = more;
+    }
+    return powers[k];
+  }
+
+}
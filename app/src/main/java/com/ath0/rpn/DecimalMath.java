@@ -0,0 +1,311 @@
+package com.ath0.rpn;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+/**
+ * Arbitrary precision exponential and natural logarithm.
+ * exp(x) is reduced to 2^k * exp(r) with 0 <= r < ln 2, and r is halved a
+ * few times more. The bits of r are then split into chunks of doubling
+ * length, and the Taylor series for exp() of each chunk is summed by binary
+ * splitting, so each series is a product of small integers which is
+ * divided out once at the end. ln(x) is
+ * reduced by powers of ten and two to the logarithm of a value near 1,
+ * which is found by Newton's method on exp(), doubling the precision at
+ * each step. ln(2) and ln(10) are computed by binary splitting of arctanh
+ * series, and cached for later calls.
+ * All methods check for cancellation as they go.
+ */
+final class DecimalMath {
+
+  // Extra digits carried internally, to absorb rounding errors.
+  private static final int GUARD_DIGITS = 10;
+
+  // Extra bits carried by exp() when working in binary.
+  private static final int GUARD_BITS = 16;
+
+  // Number of times the reduced argument to exp() is halved before summing
+  // the series, which is also the number of bits in the first chunk.
+  private static final int HALVINGS = 8;
+
+  // Precision below which Newton's method for ln() can start from a double.
+  private static final int DOUBLE_DIGITS = 15;
+
+  // Series shorter than this are summed without checking for cancellation.
+  private static final int CANCEL_CHECK_TERMS = 64;
+
+  // Largest argument to exp() which is accepted, so that the power of two
+  // in the result fits in an int.
+  private static final double MAX_EXP_ARGUMENT = 1e9;
+
+  private static final double LN_2 = Math.log(2);
+  private static final double LOG2_10 = Math.log(10) / LN_2;
+  private static final BigDecimal FIVE = BigDecimal.valueOf(5);
+
+  // Cached constants, computed to the largest scale yet asked for.
+  private static BigDecimal ln2;
+  private static BigDecimal ln10;
+
+  private DecimalMath() {
+    super();
+  }
+
+  /**
+   * Computes e^x.
+   * @param x the exponent, |x| <= 10^9
+   * @param mc the precision of the result
+   * @throws ArithmeticException if x is out of range
+   */
+  static BigDecimal exp(final BigDecimal x, final MathContext mc) {
+    if (x.signum() == 0) {
+      return BigDecimal.ONE;
+    }
+    final double xd = x.doubleValue();
+    if (Math.abs(xd) > MAX_EXP_ARGUMENT) {
+      throw new ArithmeticException("Result too large");
+    }
+    int k = (int) Math.floor(xd / LN_2);
+    final int wp = mc.getPrecision() + GUARD_DIGITS;
+    // x - k ln(2) is computed to wp places, so ln(2) needs as many more
+    // places as k has digits.
+    final BigDecimal l2 = ln2(wp + digits(k));
+    BigDecimal r = x.subtract(l2.multiply(BigDecimal.valueOf(k)))
+        .setScale(wp, RoundingMode.HALF_EVEN);
+    // The double estimate of k can be out by one for large x.
+    while (r.signum() < 0) {
+      r = r.add(l2);
+      k--;
+    }
+    while (r.compareTo(l2) >= 0) {
+      r = r.subtract(l2);
+      k++;
+    }
+    // r as a binary fraction with enough bits for wp digits, allowing for
+    // the error doubling with each squaring below.
+    final int bits = (int) Math.ceil(wp * LOG2_10) + GUARD_BITS + HALVINGS;
+    final BigInteger fixed = r.unscaledValue().shiftLeft(bits)
+        .divide(BigInteger.TEN.pow(r.scale()));
+    // The same bits with the binary point moved are r / 2^HALVINGS, whose
+    // series converges faster. Squaring e^(r / 2^HALVINGS) HALVINGS times
+    // then gives e^r.
+    final int rbits = bits + HALVINGS;
+    BigInteger er = expFixed(fixed, rbits);
+    for (int i = 0; i < HALVINGS; i++) {
+      er = er.multiply(er).shiftRight(rbits);
+    }
+    // e^x = e^r * 2^k.
+    final BigDecimal e = new BigDecimal(er);
+    final int shift = k - rbits;
+    if (shift >= 0) {
+      return e.multiply(new BigDecimal(BigInteger.ONE.shiftLeft(shift)), mc);
+    }
+    return e.divide(new BigDecimal(BigInteger.ONE.shiftLeft(-shift)), mc);
+  }
+
+  /**
+   * Computes e^r for 0 <= r < 1, with r and the result as binary fractions
+   * with the given number of bits, as the product of e^r_i for chunks r_i
+   * of the bits of r. The first chunk is the first few bits past the binary
+   * point, and each later chunk has as many bits as all those before it. A
+   * chunk starting at bit b is less than 2^-b, so its series needs only
+   * about 1/b as many terms as r has bits, and the products in its binary
+   * splitting stay small. Working in binary means the only rounding is by
+   * shifting.
+   */
+  private static BigInteger expFixed(final BigInteger r, final int bits) {
+    BigInteger result = BigInteger.ONE.shiftLeft(bits);
+    int done = 0;
+    while (done < bits) {
+      final int end = Math.min(done == 0 ? HALVINGS : done << 1, bits);
+      final BigInteger chunk = r.shiftRight(bits - end)
+          .subtract(r.shiftRight(bits - done).shiftLeft(end - done));
+      if (chunk.signum() != 0) {
+        result = result.multiply(expSeries(chunk, end, bits))
+            .shiftRight(bits);
+      }
+      done = end;
+      CalculatorStack.checkCancelled();
+    }
+    return result;
+  }
+
+  /**
+   * Sums the Taylor series for e^(p/2^s), p > 0, by binary splitting.
+   * @return the sum as a binary fraction with the given number of bits
+   */
+  private static BigInteger expSeries(final BigInteger p, final int s,
+      final int bits) {
+    // Upper bound on log2(p/2^s).
+    final int logx = p.bitLength() - s;
+    // Find the number of terms needed, from the log of x^n/n!.
+    int n = 0;
+    double logTerm = 0;
+    while (logTerm > -bits) {
+      n++;
+      logTerm += logx - Math.log(n) / LN_2;
+    }
+    final BigInteger[] pqt = expSplit(p, s, 0, n + 1);
+    return pqt[2].shiftLeft(bits).divide(pqt[1]);
+  }
+
+  /**
+   * Binary splitting for terms a to b-1 of the series for e^(p/2^s).
+   * Term n is the previous term times p/(n 2^s).
+   * @return {P, Q, T} where P and Q are the products of the numerators and
+   * denominators of the term ratios, and T/Q is the sum of the terms
+   * relative to the term before a
+   */
+  private static BigInteger[] expSplit(final BigInteger p, final int s,
+      final int a, final int b) {
+    if (b - a == 1) {
+      if (a == 0) {
+        return new BigInteger[] {BigInteger.ONE, BigInteger.ONE,
+            BigInteger.ONE};
+      }
+      return new BigInteger[] {p, BigInteger.valueOf(a).shiftLeft(s), p};
+    }
+    if (b - a >= CANCEL_CHECK_TERMS) {
+      CalculatorStack.checkCancelled();
+    }
+    final int m = (a + b) >>> 1;
+    final BigInteger[] l = expSplit(p, s, a, m);
+    final BigInteger[] r = expSplit(p, s, m, b);
+    return new BigInteger[] {
+      l[0].multiply(r[0]),
+      l[1].multiply(r[1]),
+      l[2].multiply(r[1]).add(l[0].multiply(r[2]))
+    };
+  }
+
+  /**
+   * Computes ln(x), x > 0.
+   * @param scale the number of decimal places in the result
+   * @throws ArithmeticException if x <= 0
+   */
+  static BigDecimal ln(final BigDecimal x, final int scale) {
+    if (x.signum() <= 0) {
+      throw new ArithmeticException("Logarithm of non-positive number");
+    }
+    final int wp = scale + GUARD_DIGITS;
+    // x = f * 10^e10, 1 <= f < 10, rounded to the working precision.
+    final int e10 = x.precision() - x.scale() - 1;
+    BigDecimal f = x.movePointLeft(e10)
+        .round(new MathContext(wp + 1, RoundingMode.HALF_EVEN));
+    // Then f = f' * 2^e2, where f' is within a factor of root two of 1.
+    final int e2 = (int) Math.round(Math.log(f.doubleValue()) / LN_2);
+    f = f.multiply(FIVE.pow(e2)).movePointLeft(e2);
+    BigDecimal result = lnNearOne(f, wp);
+    if (e10 != 0) {
+      result = result.add(ln10(wp + digits(e10))
+          .multiply(BigDecimal.valueOf(e10)));
+    }
+    if (e2 != 0) {
+      result = result.add(ln2(wp + 1).multiply(BigDecimal.valueOf(e2)));
+    }
+    return result.setScale(scale, RoundingMode.HALF_EVEN);
+  }
+
+  /**
+   * Computes ln(f) for f near 1 to wp places by Newton's method,
+   * y' = y + f e^-y - 1. Each step doubles the number of correct digits,
+   * so each is done at twice the precision of the one before, starting
+   * from the double value.
+   */
+  private static BigDecimal lnNearOne(final BigDecimal f, final int wp) {
+    int steps = 0;
+    for (int p = wp; p > DOUBLE_DIGITS; p = (p >> 1) + 1) {
+      steps++;
+    }
+    final int[] precisions = new int[steps];
+    int precision = wp;
+    for (int i = steps - 1; i >= 0; i--) {
+      precisions[i] = precision;
+      precision = (precision >> 1) + 1;
+    }
+    BigDecimal y = BigDecimal.valueOf(Math.log(f.doubleValue()));
+    for (final int p : precisions) {
+      final MathContext mc = new MathContext(p + 2, RoundingMode.HALF_EVEN);
+      final BigDecimal e = exp(y.negate(), mc);
+      y = y.add(f.multiply(e, mc).subtract(BigDecimal.ONE))
+          .setScale(p + 2, RoundingMode.HALF_EVEN);
+    }
+    return y;
+  }
+
+  /**
+   * Returns ln(2) to the given number of decimal places.
+   * ln(2) = 18 atanh(1/26) - 2 atanh(1/4801) + 8 atanh(1/8749).
+   */
+  static synchronized BigDecimal ln2(final int scale) {
+    if (ln2 == null || ln2.scale() < scale) {
+      final int wp = scale + GUARD_DIGITS;
+      ln2 = atanhInverse(26, wp).multiply(BigDecimal.valueOf(18))
+          .subtract(atanhInverse(4801, wp).multiply(BigDecimal.valueOf(2)))
+          .add(atanhInverse(8749, wp).multiply(BigDecimal.valueOf(8)))
+          .setScale(scale, RoundingMode.HALF_EVEN);
+    }
+    return ln2.setScale(scale, RoundingMode.HALF_EVEN);
+  }
+
+  /**
+   * Returns ln(10) to the given number of decimal places.
+   * ln(10) = 3 ln(2) + ln(5/4) = 3 ln(2) + 2 atanh(1/9).
+   */
+  static synchronized BigDecimal ln10(final int scale) {
+    if (ln10 == null || ln10.scale() < scale) {
+      final int wp = scale + GUARD_DIGITS;
+      ln10 = ln2(wp).multiply(BigDecimal.valueOf(3))
+          .add(atanhInverse(9, wp).multiply(BigDecimal.valueOf(2)))
+          .setScale(scale, RoundingMode.HALF_EVEN);
+    }
+    return ln10.setScale(scale, RoundingMode.HALF_EVEN);
+  }
+
+  /**
+   * Computes atanh(1/m), m > 1, to the given number of decimal places, as
+   * the sum of 1/((2n+1) m^(2n+1)) by binary splitting.
+   */
+  private static BigDecimal atanhInverse(final int m, final int scale) {
+    final int n = (int) Math.ceil((scale + 1) / (2 * Math.log10(m))) + 1;
+    final BigInteger[] qbt = atanhSplit(BigInteger.valueOf(m).pow(2), 0, n);
+    return new BigDecimal(qbt[2]).divide(
+        new BigDecimal(qbt[0].multiply(qbt[1]).multiply(BigInteger.valueOf(m))),
+        scale, RoundingMode.HALF_EVEN);
+  }
+
+  /**
+   * Binary splitting for terms a to b-1 of the series for atanh(1/m) * m,
+   * the sum of 1/((2n+1) m2^n) where m2 = m^2.
+   * @return {Q, B, T} where Q is the product of the term ratio
+   * denominators, B is the product of the 2n+1 divisors, and T/(BQ) is the
+   * sum of the terms relative to the term before a
+   */
+  private static BigInteger[] atanhSplit(final BigInteger m2, final int a,
+      final int b) {
+    if (b - a == 1) {
+      return new BigInteger[] {a == 0 ? BigInteger.ONE : m2,
+          BigInteger.valueOf(2L * a + 1), BigInteger.ONE};
+    }
+    if (b - a >= CANCEL_CHECK_TERMS) {
+      CalculatorStack.checkCancelled();
+    }
+    final int mid = (a + b) >>> 1;
+    final BigInteger[] l = atanhSplit(m2, a, mid);
+    final BigInteger[] r = atanhSplit(m2, mid, b);
+    return new BigInteger[] {
+      l[0].multiply(r[0]),
+      l[1].multiply(r[1]),
+      r[1].multiply(r[0]).multiply(l[2]).add(l[1].multiply(r[2]))
+    };
+  }
+
+  /**
+   * Returns the number of decimal digits in |n|.
+   */
+  private static int digits(final int n) {
+    return Long.toString(Math.abs((long) n)).length();
+  }
+
+}
@@ -0,0 +1,102 @@
+package com.ath0.rpn;
+
+/**
+ * Recognizes thousands separators in numbers, as the display writes them.
+ * A comma is a separator when it follows one to three digits at the start
+ * of the number, after any minus sign, or another separator's group, and
+ * is followed by exactly three digits; the last group ends the number or is
+ * followed by a decimal point or exponent. So 1,234,567.89 is grouped, and
+ * 1,2 and 12,34 are not. Tokenizer and NumberImporter both read thousands
+ * separators by these rules.
+ */
+final class Grouping {
+
+  private Grouping() {
+    super();
+  }
+
+  /**
+   * Returns whether every comma in a number is a thousands separator. A
+   * number with no commas is trivially grouped.
+   * @param s text holding the number
+   * @param start the index of the number's first character
+   * @param end the index after its last character
+   */
+  static boolean isGrouped(final CharSequence s, final int start,
+      final int end) {
+    int comma = start;
+    while (comma < end && s.charAt(comma) != ',') {
+      comma++;
+    }
+    if (comma == end) {
+      return true;
+    }
+    if (!isFirstGroup(s, start, comma)) {
+      return false;
+    }
+    int from = comma + 1;
+    while (end - from >= 3 && isGroup(s, from, from + 3)) {
+      from += 3;
+      if (from == end) {
+        return true;
+      }
+      final char c = s.charAt(from);
+      if (c != ',') {
+        // The integer part has ended; no commas may follow it.
+        return endsInteger(c) && indexOfComma(s, from, end) == -1;
+      }
+      from++;
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether the text between two indexes is one to three digits,
+   * with an optional minus sign, which could be followed by a thousands
+   * separator.
+   */
+  static boolean isFirstGroup(final CharSequence s, final int start,
+      final int end) {
+    final int from = start < end && s.charAt(start) == '-' ? start + 1 :
+        start;
+    return end - from >= 1 && end - from <= 3 && isDigits(s, from, end);
+  }
+
+  /**
+   * Returns whether the text between two indexes is exactly three digits.
+   */
+  static boolean isGroup(final CharSequence s, final int start,
+      final int end) {
+    return end - start == 3 && isDigits(s, start, end);
+  }
+
+  /**
+   * Returns whether a character ends the integer part of a number: a
+   * decimal point or exponent.
+   */
+  static boolean endsInteger(final char c) {
+    return c == '.' || c == 'e' || c == 'E';
+  }
+
+  private static boolean isDigits(final CharSequence s, final int start,
+      final int end) {
+    for (int i = start; i < end; i++) {
+      final char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOfComma(final CharSequence s, final int start,
+      final int end) {
+    for (int i = start; i < end; i++) {
+      if (s.charAt(i) == ',') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+}
@@ -2,8 +2,6 @@ package com.ath0.rpn;
 
 import java.io.Serializable;
 
-import android.util.Log;
-
 /**
  * Implements the calculator's input buffer.
  */
@@ -17,6 +15,10 @@ public class InputBuffer implements Serializable {
   // A sensible initial capacity that should fit all everyday numbers.
   private static final int INITIAL_CAPACITY = 32;
   private final StringBuilder buffer = new StringBuilder(INITIAL_CAPACITY);
+  // Incremented on every change to the buffer.
+  private transient int modifications;
+  // Where changes are recorded, if anywhere.
+  private transient Journal journal;
 
   public InputBuffer(final String value) {
     super();
@@ -30,9 +32,29 @@ public class InputBuffer implements Serializable {
   /**
    * Appends a given character to the buffer, if the result would be a valid 
    * real number. If '.' is appended to an empty buffer, a '0' is added first.
+   * Any other character is ignored.
    * @param ich a digit or '.'
    */
   public void append(final char ich) {
+    final int len = this.buffer.length();
+    add(ich);
+    appended(len);
+  }
+
+  /**
+   * Appends each character of some text in turn, as append(char) does, as
+   * a single change, such as for a number pasted from the clipboard.
+   * @param text digits and '.'
+   */
+  public void append(final CharSequence text) {
+    final int len = this.buffer.length();
+    for (int i = 0; i < text.length(); i++) {
+      add(text.charAt(i));
+    }
+    appended(len);
+  }
+
+  private void add(final char ich) {
     switch (ich) {
     case '.':
       if (this.buffer.indexOf(".") == -1) {
@@ -59,7 +81,20 @@ public class InputBuffer implements Serializable {
       this.buffer.append(ich);
       break;
     default:
-      Log.e("append", "Ignoring character '" + ich + "'");
+      break;
+    }
+  }
+
+  /**
+   * Records characters added to the end of the buffer, if any were.
+   * @param from the length of the buffer before they were added
+   */
+  private void appended(final int from) {
+    if (this.buffer.length() > from) {
+      this.modifications++;
+      if (this.journal != null) {
+        this.journal.appendInput(this.buffer, from);
+      }
     }
   }
 
@@ -70,6 +105,7 @@ public class InputBuffer implements Serializable {
     final int len = this.buffer.length();
     if (len > 0) {
       this.buffer.setLength(len - 1);
+      truncated();
     }
   }
 
@@ -78,6 +114,7 @@ public class InputBuffer implements Serializable {
    */
   public void zap() {
     this.buffer.setLength(0);
+    truncated();
   }
 
   /**
@@ -95,6 +132,35 @@ public class InputBuffer implements Serializable {
   final public void set(final String value) {
     this.buffer.setLength(0);
     this.buffer.append(value);
+    changed();
+  }
+
+  /**
+   * Records characters deleted from the end of the buffer.
+   */
+  private void truncated() {
+    this.modifications++;
+    if (this.journal != null) {
+      this.journal.truncateInput(this.buffer.length());
+    }
+  }
+
+  /**
+   * Records a change to the whole buffer.
+   */
+  private void changed() {
+    this.modifications++;
+    if (this.journal != null) {
+      this.journal.input(this.buffer);
+    }
+  }
+
+  /**
+   * Records all later changes to the buffer in a journal.
+   * @param newjournal the journal, or null to stop recording
+   */
+  public void setJournal(final Journal newjournal) {
+    this.journal = newjournal;
   }
 
   /**
@@ -105,6 +171,15 @@ public class InputBuffer implements Serializable {
     return this.buffer.toString();
   }
 
+  /**
+   * Returns a count of the changes made to the buffer, so that callers can
+   * tell whether it has changed since they last looked. The count is not
+   * saved, and may wrap around.
+   */
+  public int getModificationCount() {
+    return this.modifications;
+  }
+
   @Override
   public String toString() {
     return this.get();
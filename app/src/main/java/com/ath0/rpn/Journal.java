@@ -0,0 +1,350 @@
+package com.ath0.rpn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps the state file up to date as the calculator is used, by appending a
+ * record of each change to the stack or input buffer after the snapshot at
+ * the start of the file. See StateFile for the format.
+ * <p>
+ * Records are written to a memory-mapped region at the end of the file, so
+ * a change costs a few bytes and no system call, and is in the file as
+ * soon as it has been made: if the process dies, the kernel still writes it
+ * out. A record's type byte is written last, so a record which was cut
+ * short is never replayed.
+ * <p>
+ * As the records build up, the file is compacted by writing a new snapshot,
+ * usually on StateWriter's thread. Records made while the snapshot is
+ * being written are copied into the new file before it replaces the old
+ * one. Changes are recorded on the thread which makes them, and compaction
+ * takes the journal's lock only while copying them.
+ */
+public final class Journal {
+
+  // Bytes mapped at a time for records to be appended to.
+  private static final int MAP_SIZE = 64 * 1024;
+
+  // Bytes of records after which the file should be compacted.
+  private static final int COMPACT_SIZE = 48 * 1024;
+
+  // Initial size of the buffer records are assembled in.
+  private static final int RECORD_SIZE = 64;
+
+  private final File file;
+  private RandomAccessFile raf;
+  private MappedByteBuffer map;
+  // File offsets of the start of the map, and of the first record.
+  private long mapOffset;
+  private long recordOffset;
+  // Records are numbered by the count of bytes appended before them since
+  // the journal was opened.
+  private long first;
+  private long appended;
+  // Position of the last compaction requested, or -1.
+  private long marked = -1;
+  private IOException failure;
+  private boolean closed;
+  private ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+  /**
+   * @param file the state file
+   */
+  public Journal(final File file) {
+    super();
+    this.file = file;
+  }
+
+  /**
+   * Reads the state file, replaying its records, and then starts recording
+   * further changes. A missing file is treated as an empty state, and a
+   * file in an older format is rewritten.
+   * @param stack a stack to hold the saved values and display scale
+   * @return the saved contents of the input buffer
+   * @throws IOException if the file can't be read, or recording can't
+   * start
+   */
+  public synchronized String load(final CalculatorStack stack)
+      throws IOException {
+    final StringBuilder input = new StringBuilder();
+    StateFile.deleteTempFiles(this.file);
+    if (this.file.exists()) {
+      final RandomAccessFile f = new RandomAccessFile(this.file, "rw");
+      try {
+        final long end = StateFile.read(f.getChannel(), stack, input);
+        if (end >= 0) {
+          // Drop anything after the last whole record, so that the new
+          // records are followed by zeros.
+          f.getChannel().truncate(end);
+          open(f, end, end);
+          return input.toString();
+        }
+      } finally {
+        if (this.raf != f) {
+          f.close();
+        }
+      }
+    }
+    start(stack, input.toString());
+    return input.toString();
+  }
+
+  /**
+   * Replaces the state file with the given state, and starts recording
+   * changes to it.
+   * @param stack the calculator stack
+   * @param input the contents of the input buffer
+   */
+  public synchronized void start(final CalculatorStack stack,
+      final String input) throws IOException {
+    compact(stack, input, this.appended);
+  }
+
+  /**
+   * Returns the position to pass to compact() with a snapshot of the state
+   * taken now, and notes that a compaction has been requested. Must be
+   * called on the thread which makes changes.
+   */
+  synchronized long mark() {
+    this.marked = this.appended;
+    return this.appended;
+  }
+
+  /**
+   * Returns whether enough records have built up since the last compaction
+   * was requested that another should be, or whether recording has failed.
+   */
+  public synchronized boolean needsCompaction() {
+    return this.failure != null ||
+        this.appended - Math.max(this.first, this.marked) > COMPACT_SIZE;
+  }
+
+  /**
+   * Replaces the state file with a snapshot, followed by the records made
+   * since the snapshot was taken. Does nothing if the file has already been
+   * compacted past the snapshot, or the journal is closed.
+   * @param stack a snapshot of the stack, not the live stack
+   * @param input the contents of the input buffer
+   * @param mark the value of mark() when the snapshot was taken
+   */
+  void compact(final CalculatorStack stack, final String input,
+      final long mark) throws IOException {
+    final File temp = StateFile.tempFile(this.file);
+    final RandomAccessFile f = new RandomAccessFile(temp, "rw");
+    try {
+      f.setLength(0);
+      final FileChannel channel = f.getChannel();
+      final long end = StateFile.write(channel, stack, input);
+      f.getFD().sync();
+      synchronized (this) {
+        if (this.closed || mark < this.first) {
+          return;
+        }
+        long length = 0;
+        if (this.raf != null && mark < this.appended) {
+          length = this.appended - mark;
+          final ByteBuffer copy = ByteBuffer.allocate((int) length);
+          this.raf.getChannel().read(copy, this.recordOffset + mark -
+              this.first);
+          copy.flip();
+          channel.write(copy, end);
+        }
+        if (!temp.renameTo(this.file)) {
+          throw new IOException("Unable to replace " + this.file.getName());
+        }
+        close();
+        this.closed = false;
+        open(f, end, end + length);
+        this.failure = null;
+      }
+    } catch (IOException ex) {
+      synchronized (this) {
+        this.marked = -1;
+        if (this.map == null && !this.closed) {
+          this.failure = ex;
+        }
+      }
+      throw ex;
+    } finally {
+      if (this.raf != f) {
+        f.close();
+        temp.delete();
+      }
+    }
+  }
+
+  /**
+   * Starts appending records to an open state file.
+   * @param records the offset of the first record
+   * @param end the offset to append at
+   */
+  private void open(final RandomAccessFile f, final long records,
+      final long end) throws IOException {
+    this.map = f.getChannel().map(FileChannel.MapMode.READ_WRITE, end,
+        MAP_SIZE);
+    this.raf = f;
+    this.mapOffset = end;
+    this.recordOffset = records;
+    this.first = this.appended - (end - records);
+  }
+
+  /**
+   * Stops recording changes, and closes the state file. Any compaction
+   * still to finish is abandoned.
+   */
+  public synchronized void close() throws IOException {
+    this.closed = true;
+    this.map = null;
+    if (this.raf != null) {
+      final RandomAccessFile f = this.raf;
+      this.raf = null;
+      f.close();
+    }
+  }
+
+  void push(final ScaledDecimal value) {
+    begin();
+    value(value);
+    append(StateFile.RECORD_PUSH);
+  }
+
+  void edit(final int edit) {
+    begin();
+    StateFile.putVarint(this.record, edit);
+    append(StateFile.RECORD_EDIT);
+  }
+
+  void result(final int arity, final ScaledDecimal value) {
+    begin();
+    StateFile.putVarint(this.record, arity);
+    value(value);
+    append(StateFile.RECORD_RESULT);
+  }
+
+  void scale(final int scale) {
+    begin();
+    StateFile.putSignedVarint(this.record, scale);
+    append(StateFile.RECORD_SCALE);
+  }
+
+  void input(final CharSequence text) {
+    begin();
+    try {
+      bytes(text.toString().getBytes(StateFile.CHARSET));
+    } catch (IOException ex) {
+      // UTF-8 is always supported.
+      throw new IllegalStateException(ex);
+    }
+    append(StateFile.RECORD_INPUT);
+  }
+
+  /**
+   * Records characters typed onto the end of the input buffer.
+   * @param text the input buffer's contents
+   * @param from the length of the buffer before they were typed
+   */
+  void appendInput(final CharSequence text, final int from) {
+    begin();
+    try {
+      bytes(text.subSequence(from, text.length()).toString()
+          .getBytes(StateFile.CHARSET));
+    } catch (IOException ex) {
+      // UTF-8 is always supported.
+      throw new IllegalStateException(ex);
+    }
+    append(StateFile.RECORD_INPUT_APPEND);
+  }
+
+  /**
+   * Records characters deleted from the end of the input buffer.
+   * @param length the buffer's new length
+   */
+  void truncateInput(final int length) {
+    begin();
+    StateFile.putVarint(this.record, length);
+    append(StateFile.RECORD_INPUT_TRUNCATE);
+  }
+
+  void macros(final Macro[] macros) {
+    begin();
+    reserve(StateFile.MAX_VARINT_BYTES);
+    StateFile.putVarint(this.record, macros.length);
+    try {
+      for (final Macro macro : macros) {
+        bytes(macro.getText().getBytes(StateFile.CHARSET));
+      }
+    } catch (IOException ex) {
+      // UTF-8 is always supported.
+      throw new IllegalStateException(ex);
+    }
+    append(StateFile.RECORD_MACROS);
+  }
+
+  private void begin() {
+    this.record.clear();
+  }
+
+  /**
+   * Makes room for n more bytes in the record being assembled.
+   */
+  private void reserve(final int n) {
+    if (this.record.remaining() < n) {
+      final int size = Math.max(this.record.capacity() * 2,
+          this.record.position() + n);
+      final ByteBuffer bigger = ByteBuffer.allocate(size);
+      this.record.flip();
+      bigger.put(this.record);
+      this.record = bigger;
+    }
+  }
+
+  private void bytes(final byte[] b) {
+    reserve(StateFile.MAX_VARINT_BYTES + b.length);
+    StateFile.putVarint(this.record, b.length);
+    this.record.put(b);
+  }
+
+  private void value(final ScaledDecimal value) {
+    if (value.isCompact()) {
+      reserve(StateFile.MAX_COMPACT_VALUE_BYTES);
+      StateFile.putCompactValue(this.record, value);
+    } else {
+      reserve(StateFile.MAX_VARINT_BYTES);
+      StateFile.putSignedVarint(this.record, value.scale());
+      bytes(value.toBigDecimal().unscaledValue().toByteArray());
+    }
+  }
+
+  /**
+   * Appends the record which has been assembled. If that fails, recording
+   * stops until the file is next compacted.
+   */
+  private synchronized void append(final byte type) {
+    if (this.map == null) {
+      return;
+    }
+    this.record.flip();
+    final int length = 1 + this.record.remaining();
+    try {
+      if (this.map.remaining() < length) {
+        this.mapOffset += this.map.position();
+        this.map = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+            this.mapOffset, Math.max(MAP_SIZE, length));
+      }
+    } catch (IOException ex) {
+      this.failure = ex;
+      this.map = null;
+      return;
+    }
+    final int at = this.map.position();
+    this.map.put((byte) 0);
+    this.map.put(this.record);
+    this.map.put(at, type);
+    this.appended += length;
+  }
+
+}
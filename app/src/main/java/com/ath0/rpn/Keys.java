@@ -0,0 +1,99 @@
+package com.ath0.rpn;
+
+/**
+ * Integer codes for the calculator's keys. Each on-screen key is bound to
+ * its code when the keyboard is inflated, and hardware keys and pasted text
+ * are translated character by character, so that all input is dispatched
+ * with a single switch rather than by comparing strings.
+ * <p>
+ * The digit keys' codes are their values, 0 to 9.
+ */
+public final class Keys {
+
+  /** Not a key. */
+  public static final int NONE = -1;
+  public static final int POINT = 10;
+  public static final int ADD = 11;
+  public static final int SUBTRACT = 12;
+  public static final int MULTIPLY = 13;
+  public static final int DIVIDE = 14;
+  public static final int ENTER = 15;
+  public static final int BACKSPACE = 16;
+  public static final int CHS = 17;
+  public static final int SWAP = 18;
+  public static final int DROP = 19;
+  public static final int SQRT = 20;
+  public static final int RECIPROCAL = 21;
+  public static final int POWER = 22;
+  public static final int SET_SCALE = 23;
+
+  /** The number of key codes. */
+  public static final int COUNT = 24;
+
+  // The tags of the keys in the layout XML, indexed by code.
+  private static final String[] TAGS = {"0", "1", "2", "3", "4", "5", "6",
+      "7", "8", "9", ".", "+", "-", "*", "/", "enter", "bsp", "chs", "swap",
+      "drop", "sqrt", "1/x", "pow", "sdp"};
+
+  // Codes of the keys typed as single ASCII characters, or NONE.
+  private static final byte[] CHARS = new byte[128];
+
+  static {
+    for (int i = 0; i < CHARS.length; i++) {
+      CHARS[i] = NONE;
+    }
+    for (int key = 0; key <= DIVIDE; key++) {
+      CHARS[TAGS[key].charAt(0)] = (byte) key;
+    }
+  }
+
+  private Keys() {
+    super();
+  }
+
+  /**
+   * Returns the code of the key with a tag from the layout XML.
+   * @return the code, or NONE if no key has the tag
+   */
+  public static int forTag(final String tag) {
+    for (int key = 0; key < COUNT; key++) {
+      if (TAGS[key].equals(tag)) {
+        return key;
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Returns the code of the key typed as a character: a digit, the decimal
+   * point, or + - * /.
+   * @return the code, or NONE if the character isn't a key
+   */
+  public static int forChar(final char c) {
+    return c < CHARS.length ? CHARS[c] : NONE;
+  }
+
+  /**
+   * Returns the tag of a key in the layout XML.
+   */
+  public static String tag(final int key) {
+    return TAGS[key];
+  }
+
+  /**
+   * Returns whether a key adds a character to the input buffer, that is,
+   * whether it is a digit or the decimal point.
+   */
+  public static boolean isInput(final int key) {
+    return key >= 0 && key <= POINT;
+  }
+
+  /**
+   * Returns the character a digit or decimal point key adds to the input
+   * buffer.
+   */
+  public static char toChar(final int key) {
+    return TAGS[key].charAt(0);
+  }
+
+}
@@ -0,0 +1,183 @@
+package com.ath0.rpn;
+
+import java.util.Arrays;
+
+/**
+ * A recorded sequence of keystrokes, such as adding a markup or tax,
+ * compiled so that it can be replayed by CalculatorStack.run() without
+ * going through the keyboard or display.
+ * <p>
+ * A macro is kept as the text of an RPN program, as read by Tokenizer, so
+ * "1.15 *" multiplies by 1.15. Compiling it parses each number once, into a
+ * table of constants, and turns the program into an array of opcodes: a
+ * Keys code for each operation, or a negative index into the constants for
+ * each number to push. Macros are immutable.
+ */
+public final class Macro {
+
+  private final String text;
+  // Keys codes for operations, or -1 - i to push constants[i].
+  final int[] ops;
+  final ScaledDecimal[] constants;
+
+  private Macro(final String text, final int[] ops,
+      final ScaledDecimal[] constants) {
+    super();
+    this.text = text;
+    this.ops = ops;
+    this.constants = constants;
+  }
+
+  /**
+   * Compiles the text of an RPN program into a macro.
+   * @throws IllegalArgumentException if the text has an unknown operation
+   * or an invalid number
+   */
+  public static Macro compile(final CharSequence program) {
+    final Tokenizer tokens = new Tokenizer(program);
+    int[] ops = new int[16];
+    ScaledDecimal[] constants = new ScaledDecimal[8];
+    int length = 0;
+    int count = 0;
+    for (int token = tokens.next(); token != Tokenizer.END;
+        token = tokens.next()) {
+      int op;
+      if (token == Tokenizer.NUMBER) {
+        if (count == constants.length) {
+          constants = Arrays.copyOf(constants, count * 2);
+        }
+        try {
+          constants[count] = ScaledDecimal.valueOf(tokens.number());
+        } catch (NumberFormatException ex) {
+          throw new IllegalArgumentException("Invalid number " +
+              tokens.token());
+        }
+        op = -1 - count++;
+      } else if (token == Tokenizer.KEY) {
+        op = tokens.key();
+      } else {
+        throw new IllegalArgumentException("Unknown operation " +
+            tokens.token());
+      }
+      if (length == ops.length) {
+        ops = Arrays.copyOf(ops, length * 2);
+      }
+      ops[length++] = op;
+    }
+    return new Macro(program.toString(), Arrays.copyOf(ops, length),
+        Arrays.copyOf(constants, count));
+  }
+
+  /**
+   * Returns the text of the program the macro was compiled from.
+   */
+  public String getText() {
+    return this.text;
+  }
+
+  /**
+   * Returns the number of steps in the macro.
+   */
+  public int length() {
+    return this.ops.length;
+  }
+
+  @Override
+  public String toString() {
+    return this.text;
+  }
+
+  /**
+   * Records keystrokes as they are made, and turns them into a macro. The
+   * digits typed before each operation become a number for the macro to
+   * push, as the keyboard pushes them implicitly; enter and backspace act
+   * on the digits if there are any, and otherwise duplicate or drop the top
+   * value. Digits typed at the end are pushed too.
+   */
+  public static final class Recorder {
+
+    private final StringBuilder program = new StringBuilder();
+    private final StringBuilder typed = new StringBuilder();
+
+    public Recorder() {
+      super();
+    }
+
+    /**
+     * Records a keystroke.
+     * @param key one of the Keys codes
+     */
+    public void record(final int key) {
+      if (key == Keys.POINT) {
+        if (this.typed.indexOf(".") == -1) {
+          if (this.typed.length() == 0) {
+            this.typed.append('0');
+          }
+          this.typed.append('.');
+        }
+      } else if (Keys.isInput(key)) {
+        this.typed.append(Keys.toChar(key));
+      } else if (key == Keys.BACKSPACE && this.typed.length() > 0) {
+        this.typed.setLength(this.typed.length() - 1);
+      } else if (key == Keys.ENTER && this.typed.length() > 0) {
+        pushTyped();
+      } else {
+        pushTyped();
+        if (key == Keys.ENTER) {
+          word("dup");
+        } else if (key == Keys.BACKSPACE) {
+          word(Keys.tag(Keys.DROP));
+        } else {
+          word(Keys.tag(key));
+        }
+      }
+    }
+
+    /**
+     * Records a macro being run, as the steps of that macro.
+     */
+    public void record(final Macro macro) {
+      pushTyped();
+      word(macro.getText());
+    }
+
+    /**
+     * Records a number pushed other than by typing it, such as an imported
+     * one, as a constant.
+     */
+    public void record(final ScaledDecimal value) {
+      pushTyped();
+      word(value.toString());
+    }
+
+    /**
+     * Returns whether nothing has been recorded.
+     */
+    public boolean isEmpty() {
+      return this.program.length() == 0 && this.typed.length() == 0;
+    }
+
+    /**
+     * Returns the macro for the keystrokes recorded.
+     */
+    public Macro finish() {
+      pushTyped();
+      return compile(this.program);
+    }
+
+    private void pushTyped() {
+      if (this.typed.length() > 0) {
+        word(this.typed);
+        this.typed.setLength(0);
+      }
+    }
+
+    private void word(final CharSequence word) {
+      if (this.program.length() > 0) {
+        this.program.append(' ');
+      }
+      this.program.append(word);
+    }
+  }
+
+}
@@ -1,41 +1,98 @@
 package com.ath0.rpn;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 import android.app.Activity;
 import android.content.ClipData;
 import android.content.ClipDescription;
 import android.content.ClipboardManager;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.ContextMenu;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.SubMenu;
 import android.view.View;
 import android.view.View.OnKeyListener;
 import android.widget.FrameLayout;
-import android.widget.HorizontalScrollView;
-import android.widget.TextView;
 import android.widget.Toast;
 
+import com.ath0.rpn.CalculatorStack.PendingOperation;
+import com.ath0.rpn.CalculatorStack.PendingProgram;
+
 /**
  * Controller for RPN calculator.
  */
-public class Main extends Activity implements OnKeyListener {
+public class Main extends Activity implements OnKeyListener,
+    ComputeEngine.OnComputed {
+
+  // How long a background operation can run, in milliseconds, before the
+  // display shows that it is still working.
+  private static final long PENDING_DELAY = 150;
+
+  // Name of the saved state file in the cache directory.
+  private static final String STATE_FILE = "stack";
+
+  // Most macros kept; recording another forgets the oldest.
+  private static final int MAX_MACROS = 8;
+
+  // Request code for choosing a file of numbers to import.
+  private static final int REQUEST_IMPORT = 1;
 
   private InputBuffer buffer;
   private CalculatorStack stack;
   private String error;
   private int screenlines;
+  private ComputeEngine engine;
+  private StackDisplay display;
+  private FrameLayout frame;
+  // Whether the display needs updating, and an update has been scheduled.
+  private boolean displayDirty;
+  // Runs display updates on the next frame, where Choreographer is available.
+  private FrameUpdate frameUpdate;
+  private Journal journal;
+  private StateWriter writer;
+  // Holds the lower levels of a very deep stack, if it could be made.
+  private SpillFile spill;
+  // Modification counts of the stack and buffer when they were last saved.
+  private int savedStack;
+  private int savedBuffer;
+  // Whether the last save failed, so the state must be saved again.
+  private boolean saveFailed;
+  // Keys pressed while a background operation is running.
+  private final ArrayDeque<Integer> queued = new ArrayDeque<Integer>();
+  // Records keys while a macro is being recorded.
+  private Macro.Recorder recorder;
+
+  private final Runnable renderTask = new Runnable() {
+    @Override
+    public void run() {
+      render();
+    }
+  };
+
+  private final Runnable showPending = new Runnable() {
+    @Override
+    public void run() {
+      if (Main.this.engine.isBusy()) {
+        updateDisplay();
+      }
+    }
+  };
 
   /**
    * Typical onCreate for an Android app. Shows an EULA, mostly for the
@@ -47,12 +104,56 @@ public class Main extends Activity implements OnKeyListener {
     super.onCreate(savedInstanceState);
     Eula.show(this);
     setContentView(R.layout.main);
+    this.display = (StackDisplay) findViewById(R.id.Display);
+    this.frame = (FrameLayout) findViewById(R.id.TopFrame);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+      this.frameUpdate = new FrameUpdate(this.renderTask);
+    }
     loadState();
+    this.engine = new ComputeEngine(this);
+    this.writer = new StateWriter(this.journal,
+        new StateWriter.OnSaveFailed() {
+          @Override
+          public void onSaveFailed(final IOException ex) {
+            runOnUiThread(new Runnable() {
+              @Override
+              public void run() {
+                Main.this.saveFailed = true;
+                reportError("saveState",
+                    "Unable to save stack: " + ex.getMessage());
+              }
+            });
+          }
+        });
+  }
+
+  /**
+   * Stops any background operation when the activity goes away, and closes
+   * the journal so that the next activity can open it. Every change has
+   * already been recorded, so any save in progress is abandoned.
+   */
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    this.engine.shutdown();
+    this.writer.shutdown();
+    try {
+      this.journal.close();
+    } catch (IOException ex) {
+      Log.e("onDestroy", "Unable to close journal: " + ex.getMessage());
+    }
+    if (this.spill != null) {
+      try {
+        this.spill.close();
+      } catch (IOException ex) {
+        Log.e("onDestroy", "Unable to close spill file: " + ex.getMessage());
+      }
+    }
   }
 
   /**
    * Accesses the FrameLayout containing the calculator display and the 
-   * TextView within it, and calculates the number of lines of text that can 
+   * StackDisplay within it, and calculates the number of lines of text that can 
    * be shown given the font size.
    * Catching onWindowFocusChanged is the best way to get access to the final
    * sizing of one or more widgets.
@@ -61,8 +162,8 @@ public class Main extends Activity implements OnKeyListener {
   public void onWindowFocusChanged(final boolean hasFocus) {
     super.onWindowFocusChanged(hasFocus);
     // At this point we are guaranteed to have been laid out on screen
-    final TextView disp = (TextView) findViewById(R.id.Display);
-    final FrameLayout hsv = (FrameLayout) findViewById(R.id.TopFrame);
+    final StackDisplay disp = this.display;
+    final FrameLayout hsv = this.frame;
     this.screenlines = 1 + Math.round((float) hsv.getHeight() / 
         (float) disp.getLineHeight());
     Log.d("onWindowFocusChanged", "Frame height = " + 
@@ -86,48 +187,67 @@ public class Main extends Activity implements OnKeyListener {
     inflater.inflate(R.menu.main, menu);
     // Set the display to have a context menu. This will cause our
     // onCreateContextMenu method to be called when the display is long pressed
-    final TextView disp = (TextView) findViewById(R.id.Display);
-    registerForContextMenu(disp);
+    registerForContextMenu(this.display);
     return true;
   }
 
   /**
-   * Updates the N-level stack display on screen.
+   * Marks the N-level stack display on screen as needing an update, which is
+   * made when the next frame is drawn. However many changes are made in
+   * between, as when pasting or when a hardware key repeats, the display is
+   * only rendered once.
    */
   public void updateDisplay() {
-    final TextView disp = (TextView) findViewById(R.id.Display);
-    StringBuilder text;
-    if (this.buffer.isEmpty() && this.error == null) {
+    if (!this.displayDirty) {
+      this.displayDirty = true;
+      if (this.frameUpdate == null) {
+        this.display.post(this.renderTask);
+      } else {
+        this.frameUpdate.post();
+      }
+    }
+  }
+
+  /**
+   * Updates the N-level stack display on screen, if it needs it.
+   */
+  private void render() {
+    if (!this.displayDirty) {
+      return;
+    }
+    this.displayDirty = false;
+    final StackDisplay disp = this.display;
+    final int count = Math.max(this.screenlines, 1);
+    final String[] lines = new String[count];
+    if (this.buffer.isEmpty() && this.error == null &&
+        !this.engine.isBusy()) {
       if (this.stack.isEmpty()) {
         // Display zero rather than a totally empty display
-        text = new StringBuilder();
-        for (int i = 1; i < this.screenlines - 1; i++) {
-          text.append('\n');
-        }
-        text.append('0');
+        Arrays.fill(lines, "");
+        final StringBuilder zero = new StringBuilder("0");
         final int scale = this.stack.getScale();
         if (scale > 0) {
-          text.append('.');
+          zero.append('.');
           for (int i = 0; i < scale; i++) {
-            text.append('0');
+            zero.append('0');
           }
         }
+        lines[count - 1] = zero.toString();
       } else {
-        text = this.stack.toString(this.screenlines);
+        this.stack.getLines(lines, count);
       }
     } else {
-      text = this.stack.toString(this.screenlines - 1);
-      text.append("\n");
-      if (this.error == null) {
-        text.append(this.buffer.get());
+      this.stack.getLines(lines, count - 1);
+      if (this.engine.isBusy()) {
+        lines[count - 1] = getString(R.string.computing);
+      } else if (this.error == null) {
+        lines[count - 1] = this.buffer.get();
       } else {
-        text.append(this.error);
+        lines[count - 1] = this.error;
         this.error = null;
       }
     }
-    disp.setLines(this.screenlines);
-    disp.setText(text);
-    scrollToRight();
+    disp.setLines(lines);
   }
 
   /**
@@ -174,106 +294,148 @@ public class Main extends Activity implements OnKeyListener {
   }
 
   /**
-   * Handles keyboard operations which can be represented by simple single
-   * character labels -- the digits, / + - * and .
-   * @param c the char on the key; a digit, '/' '+' '-' '*' or '.'.
-   * @return true if the keystroke was handled.
+   * Starts a potentially slow operation running in the background. The
+   * display is updated when it finishes, or if it takes a noticeable time.
+   * @param op one of the CalculatorStack.OP_ constants
    */
-  private boolean keyOther(final char c) {
-    boolean handled = false;
-    switch (c) {
-    case '+':
-      implicitPush();
-      this.stack.add();
-      this.updateDisplay();
-      handled = true;
-      break;
-    case '-':
-      implicitPush();
-      this.stack.subtract();
-      this.updateDisplay();
-      handled = true;
-      break;
-    case '*':
-      implicitPush();
-      this.stack.multiply();
-      this.updateDisplay();
-      handled = true;
-      break;
-    case '/':
-      implicitPush();
-      this.error = this.stack.divide();
-      this.updateDisplay();
-      handled = true;
-      break;
-    default:
-      if ((c >= '0' && c <= '9') || c == '.') {
-        this.buffer.append(c);
-        this.updateDisplay();
-        handled = true;
-      }
+  private void compute(final int op) {
+    final PendingOperation pending = this.stack.prepare(op);
+    if (pending == null) {
+      updateDisplay();
+    } else {
+      background(pending);
     }
-    return handled;
   }
 
   /**
-   * Scrolls the number view over to the right. Generally called after any kind
-   * of buffer update, so that the update is actually displayed. Uses a queued
-   * thread for technical reasons.
+   * Hands a task to the compute engine, showing that it is pending if it
+   * takes a noticeable time. Its result is applied by onComputed().
    */
-  private void scrollToRight() {
-    // Enqueue the scrolling to happen after next layout
-    ((HorizontalScrollView) findViewById(R.id.Scroll)).post(new Runnable() {
-      @Override
-      public void run() {
-        ((HorizontalScrollView) findViewById(R.id.Scroll)).fullScroll(View.FOCUS_RIGHT);
-      }
-    });
+  private void background(final Runnable task) {
+    this.engine.submit(task);
+    this.display.postDelayed(this.showPending, PENDING_DELAY);
+  }
+
+  /**
+   * Receives the result of a background operation, then handles any keys
+   * which were pressed while it was running.
+   */
+  @Override
+  public void onComputed(final Runnable op) {
+    if (op instanceof FileImport) {
+      finishImport((FileImport) op);
+    } else if (op instanceof PendingProgram) {
+      this.error = this.stack.complete((PendingProgram) op);
+    } else {
+      this.error = this.stack.complete((PendingOperation) op);
+    }
+    updateDisplay();
+    compactIfNeeded();
+    while (!this.engine.isBusy() && !this.queued.isEmpty()) {
+      dispatch(this.queued.poll().intValue());
+    }
   }
 
   /**
-   * Handles all the on-screen buttons by examining their tag values from the
-   * UI declaration XML. Passes operations on to the various keyFoo methods.
+   * Handles all the on-screen buttons by the key codes CalculatorKeyLayout
+   * bound them to, in place of their tag values from the UI declaration XML.
    * @param v the View representing the button pressed
    */
   public void clickHandler(final View v) {
-    final String key = (String) v.getTag();
-    if ("sdp".equals(key)) {
+    dispatch(((Integer) v.getTag()).intValue());
+  }
+
+  /**
+   * Handles a key. All input, from buttons, the device keyboard or the
+   * clipboard, goes through here. While a background operation is running,
+   * keys are queued up to be handled once it has finished, except for
+   * backspace, which cancels the operation.
+   * @param key one of the Keys codes, or Keys.NONE
+   * @return true if the key was handled or queued.
+   */
+  private boolean dispatch(final int key) {
+    if (key == Keys.NONE) {
+      return false;
+    }
+    if (this.engine.isBusy()) {
+      if (key == Keys.BACKSPACE) {
+        this.engine.cancel();
+        this.queued.clear();
+        this.error = getString(R.string.cancelled);
+        updateDisplay();
+      } else {
+        this.queued.add(Integer.valueOf(key));
+      }
+      return true;
+    }
+    if (this.recorder != null) {
+      this.recorder.record(key);
+    }
+    switch (key) {
+    case Keys.SET_SCALE:
       implicitPush();
       this.stack.setScale();
       updateDisplay();
-    } else if ("drop".equals(key)) {
+      break;
+    case Keys.DROP:
       implicitPush();
       this.stack.drop();
       updateDisplay();
-    } else if ("swap".equals(key)) {
+      break;
+    case Keys.SWAP:
       implicitPush();
       this.stack.swap();
       updateDisplay();
-    } else if ("pow".equals(key)) {
+      break;
+    case Keys.POWER:
       implicitPush();
-      this.error = this.stack.power();
-      updateDisplay();
-    } else if ("1/x".equals(key)) {
+      compute(CalculatorStack.OP_POWER);
+      break;
+    case Keys.RECIPROCAL:
       implicitPush();
-      this.error = this.stack.reciprocal();
-      updateDisplay();
-    } else if ("bsp".equals(key)) {
+      compute(CalculatorStack.OP_RECIPROCAL);
+      break;
+    case Keys.BACKSPACE:
       keyDelete();
-    } else if ("chs".equals(key)) {
+      break;
+    case Keys.CHS:
       implicitPush();
       this.stack.chs();
       updateDisplay();
-    } else if ("sqrt".equals(key)) {
+      break;
+    case Keys.SQRT:
       implicitPush();
-      this.error = this.stack.sqrt();
-      updateDisplay();
-    } else if ("enter".equals(key)) {
+      compute(CalculatorStack.OP_SQRT);
+      break;
+    case Keys.ENTER:
       keyEnter();
-    } else {
-      final char c = key.charAt(0);
-      keyOther(c);
+      break;
+    case Keys.ADD:
+      implicitPush();
+      this.error = this.stack.add();
+      updateDisplay();
+      break;
+    case Keys.SUBTRACT:
+      implicitPush();
+      this.error = this.stack.subtract();
+      updateDisplay();
+      break;
+    case Keys.MULTIPLY:
+      implicitPush();
+      this.error = this.stack.multiply();
+      updateDisplay();
+      break;
+    case Keys.DIVIDE:
+      implicitPush();
+      compute(CalculatorStack.OP_DIVIDE);
+      break;
+    default:
+      // The digits and decimal point.
+      this.buffer.append(Keys.toChar(key));
+      updateDisplay();
     }
+    compactIfNeeded();
+    return true;
   }
 
   /**
@@ -286,18 +448,16 @@ public class Main extends Activity implements OnKeyListener {
       if (event.getAction() == KeyEvent.ACTION_DOWN) {
         // First, check for delete and enter
         if (code == KeyEvent.KEYCODE_DEL) {
-          keyDelete();
-          result = true;
+          result = dispatch(Keys.BACKSPACE);
           break handler;
         }
         if (code == KeyEvent.KEYCODE_ENTER) {
-          keyEnter();
-          result = true;
+          result = dispatch(Keys.ENTER);
           break handler;
         }
         // OK, must be a number or some other operation
         final char c = (char) event.getUnicodeChar();
-        result = keyOther(c);
+        result = dispatch(Keys.forChar(c));
         break handler;
       }
     }
@@ -305,7 +465,8 @@ public class Main extends Activity implements OnKeyListener {
   }
 
   /**
-   * Catches app pause lifecycle events and saves state.
+   * Catches app pause lifecycle events and saves state. The journal
+   * already holds every change, so this just compacts it.
    */
   @Override
   public void onPause() {
@@ -314,53 +475,82 @@ public class Main extends Activity implements OnKeyListener {
   }
 
   /**
-   * Saves state to internal device cache.
+   * Saves state to internal device cache, if it has changed since it was
+   * last saved.
    */
   private void saveState() {
-    final File dir = getCacheDir();
-    final File data = new File(dir,"stack");
-    FileOutputStream fos = null;
-    ObjectOutputStream out = null;
-    try {
-      fos = new FileOutputStream(data);
-      out = new ObjectOutputStream(fos);
-      out.writeObject(this.stack);
-      out.writeObject(this.buffer);
-      out.close();
-    } catch (IOException ex) {
-      reportError("saveState","Unable to save stack: " + ex.getMessage());
+    if (this.stack.getModificationCount() == this.savedStack &&
+        this.buffer.getModificationCount() == this.savedBuffer &&
+        !this.saveFailed) {
+      return;
     }
+    compact();
   }
 
   /**
-   * Loads state from internal device cache.
+   * Writes a snapshot of the state on a background thread, replacing the
+   * journal's records up to now.
+   */
+  private void compact() {
+    this.writer.save(this.stack.snapshot(), this.buffer.get());
+    this.savedStack = this.stack.getModificationCount();
+    this.savedBuffer = this.buffer.getModificationCount();
+    this.saveFailed = false;
+  }
+
+  /**
+   * Compacts the journal once enough changes have been recorded since it
+   * was last compacted.
+   */
+  private void compactIfNeeded() {
+    if (this.journal.needsCompaction()) {
+      compact();
+    }
+  }
+
+  /**
+   * Loads state from internal device cache, replaying the journal of
+   * changes made since it was last compacted, and starts recording further
+   * changes. State saved by older versions is converted. The lower levels
+   * of a very deep stack are spilled to a file rather than kept in memory.
    */
   private void loadState() {
-    final File dir = getCacheDir();
-    final File data = new File(dir,"stack");
-    FileInputStream fis = null;
-    ObjectInputStream in = null;
+    this.journal = new Journal(new File(getCacheDir(), STATE_FILE));
     try {
-      fis = new FileInputStream(data);
-      in = new ObjectInputStream(fis);
-      this.stack = (CalculatorStack) in.readObject();
-      this.buffer = (InputBuffer) in.readObject();
-      in.close();
-    } catch (FileNotFoundException ex) {
-      //	Log.i("loadState","No state file found, instantiating empty state"); 
-      this.buffer = new InputBuffer();
-      this.stack = new CalculatorStack();
+      this.spill = SpillFile.create(getCacheDir());
     } catch (IOException ex) {
-      reportError("loadState","Unable to load stack: " + ex.getMessage());
-    } catch (ClassNotFoundException ex) {
-      reportError("loadState","Unable to load stack: " + ex.getMessage());
+      // The whole stack is kept in memory instead.
+      Log.w("loadState", "Unable to make spill file: " + ex.getMessage());
     }
-    if (this.buffer == null) {
+    this.stack = newStack();
+    this.buffer = new InputBuffer();
+    try {
+      this.buffer.set(this.journal.load(this.stack));
+    } catch (IOException ex) {
+      reportError("loadState","Unable to load stack: " + ex.getMessage());
+      this.stack = newStack();
       this.buffer = new InputBuffer();
+      try {
+        this.journal.start(this.stack, "");
+      } catch (IOException ex2) {
+        reportError("loadState","Unable to save stack: " + ex2.getMessage());
+      }
     }
-    if (this.stack == null) {
-      this.stack = new CalculatorStack();
+    this.stack.setJournal(this.journal);
+    this.buffer.setJournal(this.journal);
+    this.savedStack = this.stack.getModificationCount();
+    this.savedBuffer = this.buffer.getModificationCount();
+  }
+
+  /**
+   * Makes an empty stack, which spills to the spill file if there is one.
+   */
+  private CalculatorStack newStack() {
+    final CalculatorStack s = new CalculatorStack();
+    if (this.spill != null) {
+      s.setSpillFile(this.spill);
     }
+    return s;
   }
 
   /**
@@ -385,10 +575,11 @@ public class Main extends Activity implements OnKeyListener {
     Context ctx = this.getBaseContext();
     ClipboardManager clipboard = 
         (ClipboardManager) ctx.getSystemService(Context.CLIPBOARD_SERVICE);
-    final TextView t = (TextView) findViewById(R.id.Display);
-    String text = t.getText().toString();
-    int lastnl = text.lastIndexOf('\n');
-    String tocopy = text.substring(lastnl + 1);
+    // Bring the display up to date first, and take its bottom line, in full
+    // even if it is shown summarized.
+    render();
+    final StackDisplay disp = this.display;
+    String tocopy = disp.getLine(disp.getLineCount() - 1);
     Log.d("copy", "Putting " + tocopy + " on clipboard");
     ClipData clip = ClipData.newPlainText("RPN calculator value", tocopy);
     clipboard.setPrimaryClip(clip);
@@ -396,8 +587,15 @@ public class Main extends Activity implements OnKeyListener {
   }
 
   /**
-   * Implements a clipboard paste. If the clipboard contains some plain text,
-   * it is treated as keyboard input.
+   * Implements a clipboard paste. If the clipboard contains a plain number,
+   * it is added to the input buffer as one change, to be edited or entered;
+   * while an operation is running, it is queued as keypresses. A list of
+   * numbers, such as a spreadsheet column, is pushed onto the stack all at
+   * once. Anything else is evaluated as an RPN program, such as
+   * "3 4 + 5 *", in the background like a slow operation, so it can be
+   * cancelled; it is ignored while another operation is running. Either way,
+   * the display is updated once at the end. While a macro is being
+   * recorded, the pasted numbers or program become part of it.
    * @return
    */
   private boolean paste() {
@@ -406,15 +604,196 @@ public class Main extends Activity implements OnKeyListener {
         (ClipboardManager) ctx.getSystemService(Context.CLIPBOARD_SERVICE);
     ClipData.Item item = clipboard.getPrimaryClip().getItemAt(0);
     CharSequence text = item.getText();
-    Log.d("paste", "Asked to paste " + text.toString());
-    // Dispatch as keypresses to self
-    for (int i = 0; i < text.length(); i++) {
-      char c = text.charAt(i);
-      keyOther(c);
+    Log.d("paste", "Asked to paste " + text.length() + " characters");
+    if (isPlainNumber(text) && this.engine.isBusy()) {
+      // Dispatch as keypresses to self
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        dispatch(Keys.forChar(c));
+      }
+    } else if (isPlainNumber(text)) {
+      if (this.recorder != null) {
+        for (int i = 0; i < text.length(); i++) {
+          this.recorder.record(Keys.forChar(text.charAt(i)));
+        }
+      }
+      this.buffer.append(text);
+      updateDisplay();
+      compactIfNeeded();
+    } else if (!this.engine.isBusy()) {
+      implicitPush();
+      final NumberImporter importer = new NumberImporter();
+      if (importer.read(text)) {
+        if (this.recorder != null) {
+          importer.recordTo(this.recorder);
+        }
+        importer.pushTo(this.stack);
+        updateDisplay();
+        compactIfNeeded();
+      } else if (this.recorder != null && !recordProgram(text)) {
+        updateDisplay();
+      } else {
+        updateDisplay();
+        background(this.stack.prepareProgram(text));
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records a pasted program in the macro being recorded. A program which
+   * can't be compiled couldn't be replayed, so it is refused with an error
+   * rather than run.
+   * @return whether the program was recorded
+   */
+  private boolean recordProgram(final CharSequence text) {
+    try {
+      this.recorder.record(Macro.compile(text));
+      return true;
+    } catch (IllegalArgumentException e) {
+      this.error = e.getMessage();
+      return false;
     }
+  }
+
+  /**
+   * Asks for a text file of numbers to import, such as a CSV file. It is
+   * read when the choice comes back to onActivityResult().
+   * @return
+   */
+  private boolean chooseImport() {
+    final Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+    intent.setType("text/*");
+    intent.addCategory(Intent.CATEGORY_OPENABLE);
+    startActivityForResult(Intent.createChooser(intent,
+        getString(R.string.import_numbers)), REQUEST_IMPORT);
     return true;
   }
+
+  /**
+   * Starts importing the numbers in a file chosen by chooseImport(). The
+   * file is read in the background, like a slow operation, and its
+   * numbers pushed by onComputed().
+   */
+  @Override
+  protected void onActivityResult(final int requestCode, final int resultCode,
+      final Intent data) {
+    super.onActivityResult(requestCode, resultCode, data);
+    if (requestCode != REQUEST_IMPORT || resultCode != RESULT_OK ||
+        data == null || data.getData() == null || this.engine.isBusy()) {
+      return;
+    }
+    background(new FileImport(getContentResolver(), data.getData()));
+  }
+
+  /**
+   * Pushes the numbers from a file which has been read, straight onto the
+   * stack as a single change, recording them in any macro being recorded.
+   * If the file has anything but numbers in it, nothing is pushed.
+   */
+  private void finishImport(final FileImport task) {
+    if (task.failure != null) {
+      reportError("importNumbers", "Unable to import: " + task.failure);
+      return;
+    }
+    final NumberImporter importer = task.importer;
+    Log.d("importNumbers", "Read " + importer.count() + " numbers");
+    if (importer.getError() == null) {
+      implicitPush();
+      if (this.recorder != null) {
+        importer.recordTo(this.recorder);
+      }
+      importer.pushTo(this.stack);
+    } else {
+      this.error = importer.getError();
+    }
+  }
   
+  /**
+   * Returns whether text is only digits and decimal points.
+   */
+  private static boolean isPlainNumber(final CharSequence text) {
+    for (int i = 0; i < text.length(); i++) {
+      if (!Keys.isInput(Keys.forChar(text.charAt(i)))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Implements undo and redo of changes to the stack. Nothing is done while
+   * a background operation is running, as it will replace its operands when
+   * it finishes.
+   * @param undo true to undo, false to redo
+   * @return
+   */
+  private boolean undo(final boolean undo) {
+    if (!this.engine.isBusy()) {
+      if (undo) {
+        this.stack.undo();
+      } else {
+        this.stack.redo();
+      }
+      updateDisplay();
+      compactIfNeeded();
+    }
+    return true;
+  }
+
+  /**
+   * Starts recording a macro, or stops and keeps the macro recorded. Only
+   * the most recent MAX_MACROS macros are kept.
+   * @return
+   */
+  private boolean record() {
+    if (this.recorder == null) {
+      this.recorder = new Macro.Recorder();
+    } else {
+      if (!this.recorder.isEmpty()) {
+        final Macro[] macros = this.stack.getMacros();
+        final int keep = Math.min(macros.length, MAX_MACROS - 1);
+        final Macro[] updated = new Macro[keep + 1];
+        System.arraycopy(macros, macros.length - keep, updated, 0, keep);
+        updated[keep] = this.recorder.finish();
+        this.stack.setMacros(updated);
+        compactIfNeeded();
+      }
+      this.recorder = null;
+    }
+    return true;
+  }
+
+  /**
+   * Runs a recorded macro in the background, like a slow operation, and
+   * updates the display once at the end. If a macro is being recorded, the
+   * macro run becomes part of it.
+   * @param index the index of the macro in the stack's list
+   * @return
+   */
+  private boolean runMacro(final int index) {
+    final Macro[] macros = this.stack.getMacros();
+    if (!this.engine.isBusy() && index < macros.length) {
+      implicitPush();
+      if (this.recorder != null) {
+        this.recorder.record(macros[index]);
+      }
+      updateDisplay();
+      background(this.stack.prepareMacro(macros[index]));
+    }
+    return true;
+  }
+
+  /**
+   * Forgets all the recorded macros.
+   * @return
+   */
+  private boolean forgetMacros() {
+    this.stack.setMacros(new Macro[0]);
+    compactIfNeeded();
+    return true;
+  }
+
   /**
    * Prepares the context menu shown by the display. It behaves just like the
    * options menu.
@@ -433,7 +812,10 @@ public class Main extends Activity implements OnKeyListener {
   
   /**
    * Prepares the options menu. Checks if the clipboard has text on it, and
-   * enables or disables the paste operation accordingly.
+   * enables or disables the paste operation accordingly. Undo and redo are
+   * enabled if there is anything to undo or redo. None of them can be used
+   * while a background operation is running. The recorded macros are listed
+   * in the run macro submenu.
    */
   @Override
   public boolean onPrepareOptionsMenu(final Menu menu) {
@@ -455,14 +837,37 @@ public class Main extends Activity implements OnKeyListener {
       Log.d("setMenuStateForClipbrd", "Clipboard is empty");
       pasteitem.setEnabled(false);
     }
+    final boolean idle = !this.engine.isBusy();
+    if (!idle) {
+      pasteitem.setEnabled(false);
+    }
+    menu.findItem(R.id.import_numbers).setEnabled(idle);
+    menu.findItem(R.id.undo).setEnabled(idle && this.stack.canUndo());
+    menu.findItem(R.id.redo).setEnabled(idle && this.stack.canRedo());
+    menu.findItem(R.id.record).setTitle(this.recorder == null ?
+        R.string.record_macro : R.string.stop_recording);
+    final Macro[] macros = this.stack.getMacros();
+    final MenuItem run = menu.findItem(R.id.macros);
+    run.setVisible(macros.length > 0);
+    run.setEnabled(idle);
+    final SubMenu submenu = run.getSubMenu();
+    submenu.clear();
+    for (int i = 0; i < macros.length; i++) {
+      submenu.add(R.id.macros, i, i, macros[i].getText());
+    }
+    menu.findItem(R.id.forget_macros).setVisible(macros.length > 0);
     return true;
   }
 
   /**
-   * Handles an options menu selection, either copy or paste.
+   * Handles an options menu selection: copy, paste, import, undo, redo, or
+   * one of the macro items.
    */
   @Override
   public boolean onOptionsItemSelected(final MenuItem item) {
+    if (item.getGroupId() == R.id.macros) {
+      return this.runMacro(item.getItemId());
+    }
     boolean result;
     switch (item.getItemId()) {
     case android.R.id.copy:
@@ -471,6 +876,21 @@ public class Main extends Activity implements OnKeyListener {
     case android.R.id.paste:
       result = this.paste();
       break;
+    case R.id.undo:
+      result = this.undo(true);
+      break;
+    case R.id.redo:
+      result = this.undo(false);
+      break;
+    case R.id.record:
+      result = this.record();
+      break;
+    case R.id.forget_macros:
+      result = this.forgetMacros();
+      break;
+    case R.id.import_numbers:
+      result = this.chooseImport();
+      break;
     default:
       result = super.onOptionsItemSelected(item);
     }
@@ -484,4 +904,68 @@ public class Main extends Activity implements OnKeyListener {
   public boolean onContextItemSelected (final MenuItem item) {
     return onOptionsItemSelected(item);
   }
+
+  /**
+   * Reads a file of numbers to import, on the ComputeEngine's thread. The
+   * stack is not touched until the task is handed back to onComputed().
+   */
+  private static final class FileImport implements Runnable {
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    final NumberImporter importer = new NumberImporter();
+    // Why the file couldn't be read, or null.
+    String failure;
+
+    FileImport(final ContentResolver resolver, final Uri uri) {
+      super();
+      this.resolver = resolver;
+      this.uri = uri;
+    }
+
+    @Override
+    public void run() {
+      try {
+        final InputStream in = this.resolver.openInputStream(this.uri);
+        if (in == null) {
+          throw new FileNotFoundException(this.uri.toString());
+        }
+        try {
+          this.importer.read(new InputStreamReader(in, "UTF-8"));
+        } finally {
+          in.close();
+        }
+      } catch (IOException ex) {
+        this.failure = ex.getMessage();
+      } catch (RuntimeException ex) {
+        // Such as a SecurityException from the provider, or cancellation.
+        this.failure = ex.getMessage();
+      }
+    }
+  }
+
+  /**
+   * Runs a task when the next frame is drawn. Kept in a class of its own
+   * so that Choreographer, which is new in Android 4.1, is only loaded where
+   * it exists.
+   */
+  private static final class FrameUpdate
+      implements Choreographer.FrameCallback {
+
+    private final Runnable task;
+
+    FrameUpdate(final Runnable task) {
+      super();
+      this.task = task;
+    }
+
+    void post() {
+      Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(final long frameTimeNanos) {
+      this.task.run();
+    }
+  }
 }
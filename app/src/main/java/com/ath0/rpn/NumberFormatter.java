@@ -0,0 +1,176 @@
+package com.ath0.rpn;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Formats stack values for display, to a fixed number of decimal places with
+ * thousands commas. The result is the same as rounding with
+ * BigDecimal.setScale(scale, RoundingMode.HALF_UP), taking toPlainString(),
+ * and putting commas into the integer part.
+ * <p>
+ * The text is built in one pass straight from the digits of the unscaled
+ * value, from DecimalConverter, which are rounded in place; the zeros needed
+ * to pad the value out to the scale are never stored. Both buffers are kept
+ * from call to call, so formatting a compact value allocates nothing but the
+ * resulting String. A formatter is not thread safe.
+ */
+final class NumberFormatter {
+
+  // Enough for any long, and everyday values with their commas.
+  private static final int INITIAL_CAPACITY = 32;
+
+  // Digits of the unscaled value's magnitude, most significant first.
+  private char[] digits = new char[INITIAL_CAPACITY];
+  private int count;
+  private char[] text = new char[INITIAL_CAPACITY];
+
+  NumberFormatter() {
+    super();
+  }
+
+  /**
+   * Formats a value.
+   * @param value the value
+   * @param scale the number of decimal places; if negative, the value is
+   * rounded to a multiple of a power of ten
+   */
+  String format(final ScaledDecimal value, final int scale) {
+    final boolean negative = loadDigits(value);
+    final long drop = (long) value.scale() - scale;
+    long zeros = 0;
+    if (drop > 0) {
+      round(drop);
+    } else {
+      zeros = -drop;
+    }
+    final boolean zero = this.count == 1 && this.digits[0] == '0';
+    final int fraction = Math.max(scale, 0);
+    if (zero) {
+      zeros = fraction;
+    } else if (scale < 0) {
+      zeros -= scale;
+    }
+    // The rounded value's digits are those loaded followed by the zeros,
+    // with the last fraction of them after the decimal point.
+    final int length = checkedInt(this.count + zeros);
+    final int integer = length - fraction;
+    final int integerDigits = Math.max(integer, 1);
+    ensureText(1 + integerDigits + (integerDigits - 1) / 3 + 1 + fraction);
+    final char[] out = this.text;
+    int pos = 0;
+    if (negative && !zero) {
+      out[pos++] = '-';
+    }
+    if (integer <= 0) {
+      out[pos++] = '0';
+    } else {
+      for (int i = 0; i < integer; i++) {
+        if (i != 0 && (integer - i) % 3 == 0) {
+          out[pos++] = ',';
+        }
+        out[pos++] = digit(i);
+      }
+    }
+    if (fraction > 0) {
+      out[pos++] = '.';
+      for (int i = integer; i < 0; i++) {
+        out[pos++] = '0';
+      }
+      for (int i = Math.max(integer, 0); i < length; i++) {
+        out[pos++] = digit(i);
+      }
+    }
+    return new String(out, 0, pos);
+  }
+
+  /**
+   * Returns a digit of the rounded value, counting the padding zeros.
+   */
+  private char digit(final int index) {
+    return index < this.count ? this.digits[index] : '0';
+  }
+
+  /**
+   * Loads the digits of the magnitude of a value's unscaled value.
+   * @return whether the value is negative
+   */
+  private boolean loadDigits(final ScaledDecimal value) {
+    if (value.isCompact()) {
+      final long unscaled = value.unscaledLong();
+      // Work with the negative magnitude, which can hold Long.MIN_VALUE.
+      long v = unscaled < 0 ? unscaled : -unscaled;
+      int n = 1;
+      for (long t = v / 10; t != 0; t /= 10) {
+        n++;
+      }
+      ensureDigits(n);
+      for (int i = n - 1; i >= 0; i--) {
+        this.digits[i] = (char) ('0' - (int) (v % 10));
+        v /= 10;
+      }
+      this.count = n;
+      return unscaled < 0;
+    }
+    final BigInteger unscaled = value.toBigDecimal().unscaledValue();
+    ensureDigits(DecimalConverter.maxDigits(unscaled) + 1);
+    this.count = DecimalConverter.toChars(unscaled, this.digits);
+    return unscaled.signum() < 0;
+  }
+
+  /**
+   * Drops the last digits, rounding half up.
+   * @param drop the number of digits to drop, at least 1
+   */
+  private void round(final long drop) {
+    if (drop > this.count) {
+      this.digits[0] = '0';
+      this.count = 1;
+      return;
+    }
+    final int keep = this.count - (int) drop;
+    final boolean up = this.digits[keep] >= '5';
+    if (keep == 0) {
+      this.digits[0] = up ? '1' : '0';
+      this.count = 1;
+      return;
+    }
+    this.count = keep;
+    if (up) {
+      int i = keep - 1;
+      while (i >= 0 && this.digits[i] == '9') {
+        this.digits[i--] = '0';
+      }
+      if (i >= 0) {
+        this.digits[i]++;
+      } else {
+        // All nines: 999 becomes 1000.
+        ensureDigits(this.count + 1);
+        System.arraycopy(this.digits, 0, this.digits, 1, this.count);
+        this.digits[0] = '1';
+        this.count++;
+      }
+    }
+  }
+
+  private void ensureDigits(final int n) {
+    if (this.digits.length < n) {
+      this.digits = Arrays.copyOf(this.digits,
+          Math.max(n, this.digits.length * 2));
+    }
+  }
+
+  private void ensureText(final int n) {
+    if (this.text.length < n) {
+      this.text = new char[Math.max(n, this.text.length * 2)];
+    }
+  }
+
+  private static int checkedInt(final long n) {
+    if (n > Integer.MAX_VALUE - 16) {
+      throw new ArithmeticException("Number too long to display");
+    }
+    return (int) n;
+  }
+
+}
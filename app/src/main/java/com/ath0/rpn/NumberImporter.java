@@ -0,0 +1,218 @@
+package com.ath0.rpn;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Reads a list of numbers, such as a spreadsheet column pasted from the
+ * clipboard or a CSV file, in one pass, ready to be pushed onto a stack all
+ * at once.
+ * <p>
+ * Numbers are separated by whitespace, semicolons, double quotes or commas.
+ * A comma is taken as a thousands separator instead, as the display writes
+ * them, when it follows one to three digits at the start of a number, or
+ * another thousands separator's group, and is followed by exactly three
+ * digits, by the same rules as Grouping; so 1,234,567.89 is one number,
+ * and 1,2,3 and 1.5,2.5 are lists.
+ * Numbers may have a minus sign and an exponent, as in -1.5e-3.
+ * <p>
+ * Text is read in a single pass, a character at a time, and only the number
+ * being read is kept besides the values, so it can come from a Reader of
+ * any size.
+ */
+public final class NumberImporter {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private ScaledDecimal[] values = new ScaledDecimal[64];
+  private int count;
+  // The number being read, without thousands separators.
+  private final StringBuilder number = new StringBuilder();
+  // Where a comma which may be a thousands separator was left out of the
+  // number, or -1.
+  private int pending = -1;
+  private String error;
+
+  public NumberImporter() {
+    super();
+  }
+
+  /**
+   * Reads numbers from text, after any read before.
+   * @return false if the text has something other than numbers in it, in
+   * which case nothing more is read; see getError()
+   */
+  public boolean read(final CharSequence text) {
+    final int len = text.length();
+    for (int i = 0; i < len && this.error == null; i++) {
+      accept(text.charAt(i));
+    }
+    endNumber();
+    return this.error == null;
+  }
+
+  /**
+   * Reads numbers from a reader, after any read before, until the end of
+   * its input. The reader is not closed. If the thread is interrupted, as
+   * when a background import is cancelled, reading stops early.
+   * @return false if the input has something other than numbers in it, in
+   * which case nothing more is read; see getError()
+   * @throws java.util.concurrent.CancellationException if the thread has
+   * been interrupted
+   */
+  public boolean read(final Reader reader) throws IOException {
+    final char[] buffer = new char[BUFFER_SIZE];
+    int n;
+    while (this.error == null && (n = reader.read(buffer)) >= 0) {
+      CalculatorStack.checkCancelled();
+      for (int i = 0; i < n && this.error == null; i++) {
+        accept(buffer[i]);
+      }
+    }
+    endNumber();
+    return this.error == null;
+  }
+
+  /**
+   * Returns the error message for the first thing read which wasn't a
+   * number, or null if there was none.
+   */
+  public String getError() {
+    return this.error;
+  }
+
+  /**
+   * Returns the number of numbers read.
+   */
+  public int count() {
+    return this.count;
+  }
+
+  /**
+   * Pushes the numbers read onto a stack, in the order they were read, as
+   * a single change.
+   */
+  public void pushTo(final CalculatorStack stack) {
+    stack.pushAll(this.values, this.count);
+  }
+
+  /**
+   * Records the numbers read as constants in a macro being recorded, in the
+   * order they were read.
+   */
+  public void recordTo(final Macro.Recorder recorder) {
+    for (int i = 0; i < this.count; i++) {
+      recorder.record(this.values[i]);
+    }
+  }
+
+  private void accept(final char c) {
+    if (c == ',') {
+      comma();
+    } else if (Character.isWhitespace(c) || c == ';' || c == '"') {
+      endNumber();
+    } else {
+      this.number.append(c);
+    }
+  }
+
+  /**
+   * Handles a comma, which is either a thousands separator, confirming any
+   * before it, or separates numbers.
+   */
+  private void comma() {
+    final int p = this.pending;
+    if (p >= 0) {
+      if (isGroup(p)) {
+        // The last separator is followed by a group, and so may this be.
+        this.pending = this.number.length();
+        return;
+      }
+      if (!isGroupAndMore(p)) {
+        // The last comma separated two numbers, and this may be a
+        // separator after the second.
+        split(p);
+        comma();
+        return;
+      }
+    } else if (isFirstGroup()) {
+      this.pending = this.number.length();
+      return;
+    }
+    endNumber();
+  }
+
+  /**
+   * Keeps the number read, which ends at a separator.
+   */
+  private void endNumber() {
+    final int p = this.pending;
+    if (p >= 0 && !isGroup(p) && !isGroupAndMore(p)) {
+      split(p);
+    }
+    this.pending = -1;
+    if (this.number.length() > 0) {
+      keep(this.number.toString());
+      this.number.setLength(0);
+    }
+  }
+
+  /**
+   * Keeps the part of the number before the comma left out at an index,
+   * which separated it from the rest.
+   */
+  private void split(final int at) {
+    keep(this.number.substring(0, at));
+    this.number.delete(0, at);
+    this.pending = -1;
+  }
+
+  /**
+   * Returns whether the number so far is one to three digits, with an
+   * optional minus sign, which could be followed by a thousands separator.
+   */
+  private boolean isFirstGroup() {
+    return Grouping.isFirstGroup(this.number, 0, this.number.length());
+  }
+
+  /**
+   * Returns whether the number after an index is exactly three digits.
+   */
+  private boolean isGroup(final int from) {
+    return Grouping.isGroup(this.number, from, this.number.length());
+  }
+
+  /**
+   * Returns whether the number after an index is three digits followed by
+   * a decimal point or exponent, which ends the integer part.
+   */
+  private boolean isGroupAndMore(final int from) {
+    return this.number.length() - from > 3 &&
+        Grouping.isGroup(this.number, from, from + 3) &&
+        Grouping.endsInteger(this.number.charAt(from + 3));
+  }
+
+  /**
+   * Parses a number and keeps it. As when evaluating, a number whose
+   * exponent would make it longer than ScaledDecimal.MAX_LENGTH digits is
+   * invalid.
+   */
+  private void keep(final String text) {
+    if (this.error != null) {
+      return;
+    }
+    final ScaledDecimal value;
+    try {
+      value = ScaledDecimal.valueOf(text);
+    } catch (NumberFormatException ex) {
+      this.error = "Invalid number " + text;
+      return;
+    }
+    if (this.count == this.values.length) {
+      this.values = Arrays.copyOf(this.values, this.count * 2);
+    }
+    this.values[this.count++] = value;
+  }
+
+}
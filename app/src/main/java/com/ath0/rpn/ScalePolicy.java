@@ -0,0 +1,71 @@
+package com.ath0.rpn;
+
+import java.math.RoundingMode;
+
+/**
+ * Controls how far the scale of calculation results may grow.
+ * Multiplying two numbers adds their scales together, so after a division
+ * at the internal scale each further multiplication doubles the number of
+ * decimal places, and every later operation gets slower. A policy caps the
+ * scale of each result, rounding any digits beyond the cap. It can also
+ * store results which are whole numbers at scale 0, so that exact integer
+ * results stay exact and compact however they were computed.
+ */
+public final class ScalePolicy {
+
+  /**
+   * Leaves results exactly as computed, with no limit on scale.
+   */
+  public static final ScalePolicy UNBOUNDED =
+      new ScalePolicy(Integer.MAX_VALUE, false);
+
+  // We use HALF_EVEN rounding because this statistically minimizes
+  // cumulative error during repeated calculations.
+  private static final RoundingMode ROUNDING = RoundingMode.HALF_EVEN;
+
+  private final int maxScale;
+  private final boolean exactIntegers;
+
+  /**
+   * @param maxScale the maximum number of decimal places kept in a result
+   * @param exactIntegers whether results which are whole numbers should be
+   * stored at scale 0
+   */
+  public ScalePolicy(final int maxScale, final boolean exactIntegers) {
+    super();
+    if (maxScale < 0) {
+      throw new IllegalArgumentException("maxScale < 0");
+    }
+    this.maxScale = maxScale;
+    this.exactIntegers = exactIntegers;
+  }
+
+  public int getMaxScale() {
+    return this.maxScale;
+  }
+
+  public boolean isExactIntegers() {
+    return this.exactIntegers;
+  }
+
+  /**
+   * Normalizes a result according to the policy.
+   * @param value the result of an operation
+   * @return the value rounded to at most the maximum scale, and converted
+   * to scale 0 if it is a whole number and exactIntegers is set
+   */
+  public ScaledDecimal apply(final ScaledDecimal value) {
+    if (value.scale() <= 0) {
+      return value;
+    }
+    ScaledDecimal result = value;
+    if (result.scale() > this.maxScale) {
+      result = result.setScale(this.maxScale, ROUNDING);
+    }
+    if (this.exactIntegers) {
+      result = result.toIntegerIfExact();
+    }
+    return result;
+  }
+
+}
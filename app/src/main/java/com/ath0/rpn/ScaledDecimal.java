@@ -0,0 +1,402 @@
+package com.ath0.rpn;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+/**
+ * Immutable decimal number used for stack values.
+ * Almost every number typed into a calculator fits in a 64 bit scaled
+ * integer, so values whose unscaled digits fit in a long are held as a
+ * primitive unscaled value plus a scale, and add, subtract, multiply and
+ * negate are performed with overflow-checked long arithmetic. When a result
+ * would overflow, or for operations such as division which need arbitrary
+ * precision, the value is promoted to a BigDecimal. Results always have the
+ * same value and scale as the equivalent BigDecimal operation.
+ */
+public final class ScaledDecimal implements Serializable {
+
+  /**
+   * Object version for serialization.
+   */
+  private static final long serialVersionUID = 1L;
+
+  public static final ScaledDecimal ZERO = new ScaledDecimal(0, 0);
+  public static final ScaledDecimal ONE = new ScaledDecimal(1, 0);
+
+  /**
+   * The most digits a value may take to write out in full, counting the
+   * zeros implied by its scale. Longer values take too much memory and
+   * time to compute with and display, so they are refused.
+   */
+  public static final int MAX_LENGTH = 200000;
+
+  // Powers of ten which fit in a long, for rescaling compact values.
+  private static final long[] LONG_TEN_POWERS = {
+    1L,
+    10L,
+    100L,
+    1000L,
+    10000L,
+    100000L,
+    1000000L,
+    10000000L,
+    100000000L,
+    1000000000L,
+    10000000000L,
+    100000000000L,
+    1000000000000L,
+    10000000000000L,
+    100000000000000L,
+    1000000000000000L,
+    10000000000000000L,
+    100000000000000000L,
+    1000000000000000000L
+  };
+
+  // Maximum number of digits in a string which is guaranteed to parse into
+  // a long without overflow.
+  private static final int MAX_COMPACT_DIGITS = 18;
+
+  // Rough sizes in memory of a compact value, and of a value held in a
+  // BigDecimal before counting its digits.
+  private static final int COMPACT_BYTES = 32;
+  private static final int BIG_BYTES = 112;
+
+  // log10(2), for estimating the number of digits in a number of bits.
+  private static final double LOG10_2 = 0.30102999566398120;
+
+  // The unscaled value, when big is null.
+  private final long unscaled;
+  // The scale, when big is null.
+  private final int scale;
+  // The value, if it is too large to be held compactly; otherwise null.
+  private final BigDecimal big;
+
+  private ScaledDecimal(final long unscaled, final int scale) {
+    super();
+    this.unscaled = unscaled;
+    this.scale = scale;
+    this.big = null;
+  }
+
+  private ScaledDecimal(final BigDecimal big) {
+    super();
+    this.unscaled = 0;
+    this.scale = big.scale();
+    this.big = big;
+  }
+
+  /**
+   * Returns a ScaledDecimal with the given unscaled value and scale.
+   */
+  public static ScaledDecimal valueOf(final long unscaled, final int scale) {
+    return new ScaledDecimal(unscaled, scale);
+  }
+
+  /**
+   * Returns a ScaledDecimal with the same value and scale as a BigDecimal,
+   * held compactly if possible.
+   */
+  public static ScaledDecimal valueOf(final BigDecimal value) {
+    final BigInteger digits = value.unscaledValue();
+    if (digits.bitLength() < Long.SIZE) {
+      return new ScaledDecimal(digits.longValue(), value.scale());
+    }
+    return new ScaledDecimal(value);
+  }
+
+  /**
+   * Parses a plain decimal number, as accepted by the InputBuffer: an
+   * optional minus sign, digits, and an optional decimal point followed by
+   * more digits. Anything else is handed to the BigDecimal parser.
+   * @param number the number to parse
+   * @throws NumberFormatException if the string is not a valid number, or
+   * has an exponent which makes it longer than MAX_LENGTH digits
+   */
+  public static ScaledDecimal valueOf(final String number) {
+    final int len = number.length();
+    int start = 0;
+    if (len > 0 && number.charAt(0) == '-') {
+      start = 1;
+    }
+    long value = 0;
+    int digits = 0;
+    int point = -1;
+    for (int i = start; i < len; i++) {
+      final char c = number.charAt(i);
+      if (c >= '0' && c <= '9') {
+        value = value * 10 + (c - '0');
+        digits++;
+      } else if (c == '.' && point == -1) {
+        point = i;
+      } else {
+        digits = -1;
+        break;
+      }
+    }
+    if (digits > 0 && digits <= MAX_COMPACT_DIGITS) {
+      final int sc = point == -1 ? 0 : len - point - 1;
+      return new ScaledDecimal(start == 0 ? value : -value, sc);
+    }
+    final ScaledDecimal result = valueOf(new BigDecimal(number));
+    // Only an exponent can make a number longer than it is written.
+    if (digits == -1 && result.length() > MAX_LENGTH) {
+      throw new NumberFormatException("Number too large: " + number);
+    }
+    return result;
+  }
+
+  /**
+   * Returns whether the value is held as a primitive long and scale.
+   */
+  public boolean isCompact() {
+    return this.big == null;
+  }
+
+  /**
+   * Returns the unscaled value of a compact value.
+   */
+  long unscaledLong() {
+    return this.unscaled;
+  }
+
+  /**
+   * Returns a rough count of the bytes of memory the value takes up.
+   */
+  int memorySize() {
+    if (this.big == null) {
+      return COMPACT_BYTES;
+    }
+    return BIG_BYTES + (this.big.unscaledValue().bitLength() >> 3);
+  }
+
+  /**
+   * Returns how many digits it takes to write the value out in full,
+   * counting zeros before or after the unscaled digits. Like
+   * integerDigits(), the count may be one too many.
+   */
+  public long length() {
+    return Math.max(integerDigits(), 0) + Math.max(this.scale, 0);
+  }
+
+  /**
+   * Returns the number of digits before the decimal point, less any zeros
+   * after it before the first significant digit: the precision less the
+   * scale, as for BigDecimal. The precision is estimated from the number of
+   * bits, so the count may be one too many.
+   */
+  public long integerDigits() {
+    final int bits = this.big == null ?
+        Long.SIZE - Long.numberOfLeadingZeros(Math.abs(this.unscaled)) :
+        this.big.unscaledValue().bitLength();
+    return (long) (bits * LOG10_2) + 1 - this.scale;
+  }
+
+  /**
+   * Returns the scale of the value, as per BigDecimal.scale().
+   */
+  public int scale() {
+    return this.scale;
+  }
+
+  /**
+   * Returns -1, 0 or 1 as the value is negative, zero or positive.
+   */
+  public int signum() {
+    if (this.big == null) {
+      return Long.signum(this.unscaled);
+    }
+    return this.big.signum();
+  }
+
+  /**
+   * Converts the value to a BigDecimal with the same value and scale.
+   */
+  public BigDecimal toBigDecimal() {
+    if (this.big == null) {
+      return BigDecimal.valueOf(this.unscaled, this.scale);
+    }
+    return this.big;
+  }
+
+  /**
+   * Returns this + other.
+   */
+  public ScaledDecimal add(final ScaledDecimal other) {
+    if (this.big == null && other.big == null) {
+      long a = this.unscaled;
+      long b = other.unscaled;
+      int sc = this.scale;
+      if (this.scale < other.scale) {
+        a = rescale(a, other.scale - this.scale);
+        sc = other.scale;
+      } else if (this.scale > other.scale) {
+        b = rescale(b, this.scale - other.scale);
+      }
+      if (a != Long.MIN_VALUE && b != Long.MIN_VALUE) {
+        final long r = a + b;
+        // Overflow iff both operands have the opposite sign to the result.
+        if (((a ^ r) & (b ^ r)) >= 0) {
+          return new ScaledDecimal(r, sc);
+        }
+      }
+    }
+    return valueOf(toBigDecimal().add(other.toBigDecimal()));
+  }
+
+  /**
+   * Returns this - other.
+   */
+  public ScaledDecimal subtract(final ScaledDecimal other) {
+    return add(other.negate());
+  }
+
+  /**
+   * Returns this * other.
+   */
+  public ScaledDecimal multiply(final ScaledDecimal other) {
+    if (this.big == null && other.big == null) {
+      final long r = multiply(this.unscaled, other.unscaled);
+      final long sc = (long) this.scale + (long) other.scale;
+      if (r != Long.MIN_VALUE && sc == (int) sc) {
+        return new ScaledDecimal(r, (int) sc);
+      }
+    }
+    return valueOf(toBigDecimal().multiply(other.toBigDecimal()));
+  }
+
+  /**
+   * Returns -this.
+   */
+  public ScaledDecimal negate() {
+    if (this.big == null && this.unscaled != Long.MIN_VALUE) {
+      return new ScaledDecimal(-this.unscaled, this.scale);
+    }
+    return valueOf(toBigDecimal().negate());
+  }
+
+  /**
+   * Returns a value with the given scale, rounding if digits are removed.
+   * @param newScale the scale of the result
+   * @param mode the rounding mode; HALF_UP and HALF_EVEN are handled
+   * without promotion to BigDecimal
+   */
+  public ScaledDecimal setScale(final int newScale, final RoundingMode mode) {
+    if (this.big == null) {
+      if (newScale >= this.scale) {
+        final long r = rescale(this.unscaled, newScale - this.scale);
+        if (r != Long.MIN_VALUE) {
+          return new ScaledDecimal(r, newScale);
+        }
+      } else if (this.scale - newScale < LONG_TEN_POWERS.length &&
+          (mode == RoundingMode.HALF_UP || mode == RoundingMode.HALF_EVEN)) {
+        final long divisor = LONG_TEN_POWERS[this.scale - newScale];
+        long q = this.unscaled / divisor;
+        final long r = Math.abs(this.unscaled % divisor);
+        // r < divisor <= 10^18, so doubling it can't overflow.
+        final long twice = r << 1;
+        if (twice > divisor || (twice == divisor &&
+            (mode == RoundingMode.HALF_UP || (q & 1) != 0))) {
+          q += this.unscaled < 0 ? -1 : 1;
+        }
+        return new ScaledDecimal(q, newScale);
+      }
+    }
+    return valueOf(toBigDecimal().setScale(newScale, mode));
+  }
+
+  /**
+   * Returns the value at scale 0 if it is a whole number, otherwise returns
+   * this value unchanged.
+   */
+  public ScaledDecimal toIntegerIfExact() {
+    if (this.scale <= 0) {
+      return this;
+    }
+    if (this.big == null) {
+      if (this.unscaled == 0) {
+        return ZERO;
+      }
+      // A multiple of 10^scale is also a multiple of 2^scale, which is a
+      // cheap test to do first.
+      if (this.scale < LONG_TEN_POWERS.length &&
+          Long.numberOfTrailingZeros(this.unscaled) >= this.scale &&
+          this.unscaled % LONG_TEN_POWERS[this.scale] == 0) {
+        return new ScaledDecimal(this.unscaled / LONG_TEN_POWERS[this.scale],
+            0);
+      }
+      return this;
+    }
+    final BigInteger digits = this.big.unscaledValue();
+    if (digits.getLowestSetBit() < this.scale) {
+      return this;
+    }
+    final BigInteger[] qr = digits.divideAndRemainder(
+        BigInteger.TEN.pow(this.scale));
+    if (qr[1].signum() != 0) {
+      return this;
+    }
+    return valueOf(new BigDecimal(qr[0]));
+  }
+
+  /**
+   * Multiplies a compact unscaled value by a power of ten.
+   * @return the result, or Long.MIN_VALUE on overflow
+   */
+  private static long rescale(final long value, final int places) {
+    if (places >= LONG_TEN_POWERS.length) {
+      return value == 0 ? 0 : Long.MIN_VALUE;
+    }
+    return multiply(value, LONG_TEN_POWERS[places]);
+  }
+
+  /**
+   * Multiplies two longs.
+   * @return the product, or Long.MIN_VALUE on overflow. Long.MIN_VALUE is
+   * never a valid result, which keeps negation of compact values safe.
+   */
+  private static long multiply(final long a, final long b) {
+    final long r = a * b;
+    final long aa = Math.abs(a);
+    final long ab = Math.abs(b);
+    if (((aa | ab) >>> 31) != 0) {
+      // Slow check only needed when either value has more than 31 bits.
+      if ((b != 0 && r / b != a) || (a == Long.MIN_VALUE && b == -1)) {
+        return Long.MIN_VALUE;
+      }
+    }
+    return r;
+  }
+
+  /**
+   * Values are equal if they have the same value and scale, as per
+   * BigDecimal.equals.
+   */
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof ScaledDecimal)) {
+      return false;
+    }
+    final ScaledDecimal other = (ScaledDecimal) obj;
+    if (this.big == null && other.big == null) {
+      return this.unscaled == other.unscaled && this.scale == other.scale;
+    }
+    return toBigDecimal().equals(other.toBigDecimal());
+  }
+
+  @Override
+  public int hashCode() {
+    return toBigDecimal().hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return toBigDecimal().toString();
+  }
+
+}
@@ -0,0 +1,169 @@
+package com.ath0.rpn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Holds the lower levels of a very deep stack on disk, so that only the
+ * levels near the top take up memory. See ValueStack, which decides what is
+ * spilled here and pages values back as they are reached.
+ * <p>
+ * The file holds a linked list like ValueStack's, whose records are never
+ * changed once written: each record is a value and a reference to the
+ * record for the value beneath it. So versions of the stack kept for undo,
+ * or saved on another thread, can share records just as they share nodes.
+ * A record is:
+ * <ul>
+ * <li>the reference to the record beneath, or -1 at the bottom, as a
+ * long;</li>
+ * <li>the value's scale, as an int;</li>
+ * <li>0 and the unscaled value as a long, for a compact value, or else the
+ * number of bytes in the unscaled value and the value in big-endian two's
+ * complement.</li>
+ * </ul>
+ * Records are appended to memory-mapped segments of the file, so writing
+ * and reading a value costs no system call. Space is not reused: the file
+ * is deleted as soon as it is opened, and its space is given back once it
+ * has been closed and its segments are no longer referenced.
+ * <p>
+ * Records are appended by one thread at a time. Any thread may read a
+ * record which was appended before the version of the stack referring to it
+ * was handed over, as for a snapshot being saved.
+ */
+public final class SpillFile {
+
+  // Bytes mapped at a time, unless a record needs more.
+  private static final int SEGMENT_SIZE = 1024 * 1024;
+
+  // Bytes in a record before the unscaled value.
+  private static final int HEADER_SIZE = 16;
+
+  private static final int NEXT = 0;
+  private static final int SCALE = 8;
+  private static final int LENGTH = 12;
+
+  private final RandomAccessFile raf;
+  // Mapped segments of the file, replaced when a segment is added.
+  private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+  // File offset of the end of the last segment.
+  private long mapped;
+  // Offset in the last segment at which the next record is written.
+  private int end;
+
+  private SpillFile(final RandomAccessFile raf) {
+    super();
+    this.raf = raf;
+  }
+
+  /**
+   * Opens a new spill file in a directory, such as the application's cache
+   * directory.
+   * @throws IOException if the file can't be made
+   */
+  public static SpillFile create(final File dir) throws IOException {
+    final File file = File.createTempFile("stack", ".spill", dir);
+    final RandomAccessFile raf;
+    try {
+      raf = new RandomAccessFile(file, "rw");
+    } finally {
+      // The open file can still be used; nothing is left behind.
+      file.delete();
+    }
+    return new SpillFile(raf);
+  }
+
+  /**
+   * Closes the file. Records already read from remain readable; no more
+   * can be appended.
+   */
+  public void close() throws IOException {
+    this.raf.close();
+  }
+
+  /**
+   * Appends a record for a value.
+   * @param next the record for the value beneath, or -1
+   * @return a reference to the record
+   * @throws IOException if the file can't be extended
+   */
+  long append(final ScaledDecimal value, final long next) throws IOException {
+    final byte[] digits = value.isCompact() ? null :
+        value.toBigDecimal().unscaledValue().toByteArray();
+    final int length = HEADER_SIZE +
+        (digits == null ? Long.SIZE / Byte.SIZE : digits.length);
+    MappedByteBuffer[] s = this.segments;
+    if (s.length == 0 || s[s.length - 1].capacity() - this.end < length) {
+      s = grow(length);
+    }
+    final int segment = s.length - 1;
+    final MappedByteBuffer b = s[segment];
+    final int at = this.end;
+    b.putLong(at + NEXT, next);
+    b.putInt(at + SCALE, value.scale());
+    if (digits == null) {
+      b.putInt(at + LENGTH, 0);
+      b.putLong(at + HEADER_SIZE, value.unscaledLong());
+    } else {
+      b.putInt(at + LENGTH, digits.length);
+      for (int i = 0; i < digits.length; i++) {
+        b.put(at + HEADER_SIZE + i, digits[i]);
+      }
+    }
+    this.end = at + length;
+    return ((long) segment << Integer.SIZE) | at;
+  }
+
+  /**
+   * Maps a new segment at the end of the file.
+   * @param length the size of the record which didn't fit
+   */
+  private MappedByteBuffer[] grow(final int length) throws IOException {
+    final int size = Math.max(SEGMENT_SIZE, length);
+    final MappedByteBuffer map = this.raf.getChannel().map(
+        FileChannel.MapMode.READ_WRITE, this.mapped, size);
+    final MappedByteBuffer[] old = this.segments;
+    final MappedByteBuffer[] s = new MappedByteBuffer[old.length + 1];
+    System.arraycopy(old, 0, s, 0, old.length);
+    s[old.length] = map;
+    this.mapped += size;
+    this.end = 0;
+    this.segments = s;
+    return s;
+  }
+
+  private MappedByteBuffer segment(final long record) {
+    return this.segments[(int) (record >>> Integer.SIZE)];
+  }
+
+  /**
+   * Returns the value in a record.
+   */
+  ScaledDecimal value(final long record) {
+    final MappedByteBuffer b = segment(record);
+    final int at = (int) record;
+    final int scale = b.getInt(at + SCALE);
+    final int n = b.getInt(at + LENGTH);
+    if (n == 0) {
+      return ScaledDecimal.valueOf(b.getLong(at + HEADER_SIZE), scale);
+    }
+    final byte[] digits = new byte[n];
+    for (int i = 0; i < n; i++) {
+      digits[i] = b.get(at + HEADER_SIZE + i);
+    }
+    return ScaledDecimal.valueOf(new BigDecimal(new BigInteger(digits),
+        scale));
+  }
+
+  /**
+   * Returns the record for the value beneath a record's, or -1.
+   */
+  long next(final long record) {
+    return segment(record).getLong((int) record + NEXT);
+  }
+
+}
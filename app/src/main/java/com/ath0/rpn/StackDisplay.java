@@ -0,0 +1,288 @@
+package com.ath0.rpn;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.OverScroller;
+
+/**
+ * Shows the lines of the stack display, right aligned at the bottom of the
+ * view, and scrolled sideways together.
+ * <p>
+ * This replaces a TextView in a HorizontalScrollView, which measured and laid
+ * out every character of every line; for a result tens of thousands of
+ * digits long, that took seconds after each keystroke. Here the text is
+ * drawn in a monospace font, so the width of a long line follows from its
+ * length, and only the characters in the visible window are drawn. The cost
+ * of a frame depends on the size of the view, not the size of the numbers.
+ * <p>
+ * A line longer than SUMMARY_LENGTH is shown as its leading digits and power
+ * of ten, until the display is tapped to show the digits in full.
+ */
+public class StackDisplay extends View {
+
+  // Lines longer than this are summarized.
+  private static final int SUMMARY_LENGTH = 1000;
+
+  // Significant digits shown in a summary.
+  private static final int SUMMARY_DIGITS = 12;
+
+  // Lines longer than this are taken to be all digits and punctuation, which
+  // are the same width in a monospace font, rather than being measured.
+  private static final int MEASURE_LENGTH = 64;
+
+  // Size of TextAppearance.Large.
+  private static final float TEXT_SIZE_SP = 22;
+
+  private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final OverScroller scroller;
+  private final GestureDetector gestures;
+  private final float charWidth;
+  private String[] lines = new String[0];
+  // The text drawn for each line, which may be a summary, and its width.
+  private String[] shown = new String[0];
+  private float[] widths = new float[0];
+  private float textWidth;
+  private boolean summarize = true;
+
+  public StackDisplay(final Context context) {
+    this(context, null);
+  }
+
+  public StackDisplay(final Context context, final AttributeSet attrs) {
+    this(context, attrs, 0);
+  }
+
+  public StackDisplay(final Context context, final AttributeSet attrs,
+      final int defStyle) {
+    super(context, attrs, defStyle);
+    this.paint.setTypeface(Typeface.MONOSPACE);
+    this.paint.setColor(0xff000000);
+    this.paint.setTextSize(TypedValue.applyDimension(
+        TypedValue.COMPLEX_UNIT_SP, TEXT_SIZE_SP,
+        context.getResources().getDisplayMetrics()));
+    this.charWidth = this.paint.measureText("0");
+    this.scroller = new OverScroller(context);
+    this.gestures = new GestureDetector(context, new Gestures());
+    setHorizontalScrollBarEnabled(true);
+  }
+
+  /**
+   * Returns the height of a line of text, in pixels.
+   */
+  public int getLineHeight() {
+    return Math.round(this.paint.getFontSpacing());
+  }
+
+  /**
+   * Returns the number of lines shown.
+   */
+  public int getLineCount() {
+    return this.lines.length;
+  }
+
+  /**
+   * Returns a line of the display in full, even if it is shown summarized.
+   */
+  public String getLine(final int index) {
+    return this.lines[index];
+  }
+
+  /**
+   * Sets the lines to show, and scrolls to their right hand end.
+   * @param newlines the lines, from the top of the display down; the array
+   * is kept, and must not be changed afterwards
+   */
+  public void setLines(final String[] newlines) {
+    this.lines = newlines;
+    layoutLines();
+    this.scroller.forceFinished(true);
+    scrollTo(maxScroll(), 0);
+    invalidate();
+  }
+
+  /**
+   * Works out the text and width of each line.
+   */
+  private void layoutLines() {
+    final int n = this.lines.length;
+    if (this.shown.length != n) {
+      this.shown = new String[n];
+      this.widths = new float[n];
+    }
+    this.textWidth = 0;
+    for (int i = 0; i < n; i++) {
+      String line = this.lines[i];
+      if (this.summarize && line.length() > SUMMARY_LENGTH) {
+        line = summary(line);
+      }
+      this.shown[i] = line;
+      this.widths[i] = line.length() > MEASURE_LENGTH ?
+          line.length() * this.charWidth : this.paint.measureText(line);
+      this.textWidth = Math.max(this.textWidth, this.widths[i]);
+    }
+  }
+
+  /**
+   * Summarizes a long formatted number as its leading digits and its power
+   * of ten, such as 1.23456789012&#x2026;&#xd7;10^30102. A number with no
+   * integer part, such as a long fraction being typed, is left as it is.
+   */
+  static String summary(final String line) {
+    final int start = line.charAt(0) == '-' ? 1 : 0;
+    if (line.charAt(start) == '0' || line.charAt(start) == '.') {
+      // Only a large integer part makes a stack value this long.
+      return line;
+    }
+    int point = line.indexOf('.');
+    if (point < 0) {
+      point = line.length();
+    }
+    int exponent = -1;
+    for (int i = start; i < point; i++) {
+      if (line.charAt(i) != ',') {
+        exponent++;
+      }
+    }
+    final StringBuilder result = new StringBuilder(SUMMARY_DIGITS + 16);
+    result.append(line, 0, start);
+    int digits = 0;
+    for (int i = start; i < line.length() && digits < SUMMARY_DIGITS; i++) {
+      final char c = line.charAt(i);
+      if (c >= '0' && c <= '9') {
+        result.append(c);
+        if (digits == 0) {
+          result.append('.');
+        }
+        digits++;
+      }
+    }
+    result.append("\u2026\u00d710^").append(exponent);
+    return result.toString();
+  }
+
+  /**
+   * Returns the width of the content, with padding, which is at least the
+   * width of the view.
+   */
+  private float contentWidth() {
+    return Math.max(getPaddingLeft() + this.textWidth + getPaddingRight(),
+        getWidth());
+  }
+
+  private int maxScroll() {
+    return (int) Math.ceil(contentWidth() - getWidth());
+  }
+
+  @Override
+  protected void onSizeChanged(final int w, final int h, final int oldw,
+      final int oldh) {
+    super.onSizeChanged(w, h, oldw, oldh);
+    scrollTo(maxScroll(), 0);
+  }
+
+  @Override
+  protected void onDraw(final Canvas canvas) {
+    super.onDraw(canvas);
+    // The canvas is already translated by the scroll position, so this
+    // works in content coordinates.
+    final float right = contentWidth() - getPaddingRight();
+    final float left = getScrollX();
+    final float visible = left + getWidth();
+    final float descent = this.paint.descent();
+    final float height = this.paint.getFontSpacing();
+    float y = getHeight() - getPaddingBottom() - descent;
+    for (int i = this.shown.length - 1; i >= 0 && y + descent > 0; i--) {
+      final String line = this.shown[i];
+      final float x = right - this.widths[i];
+      if (line.length() <= MEASURE_LENGTH) {
+        canvas.drawText(line, x, y, this.paint);
+      } else {
+        final int from = Math.max(0, (int) ((left - x) / this.charWidth));
+        final int to = Math.min(line.length(),
+            (int) Math.ceil((visible - x) / this.charWidth));
+        if (from < to) {
+          canvas.drawText(line, from, to, x + from * this.charWidth, y,
+              this.paint);
+        }
+      }
+      y -= height;
+    }
+  }
+
+  @Override
+  protected int computeHorizontalScrollRange() {
+    return (int) Math.ceil(contentWidth());
+  }
+
+  @Override
+  public void computeScroll() {
+    if (this.scroller.computeScrollOffset()) {
+      scrollTo(this.scroller.getCurrX(), 0);
+      invalidate();
+    }
+  }
+
+  @Override
+  public boolean onTouchEvent(final MotionEvent event) {
+    return this.gestures.onTouchEvent(event) || super.onTouchEvent(event);
+  }
+
+  /**
+   * Switches between summaries and the full digits of long lines.
+   */
+  @Override
+  public boolean performClick() {
+    final boolean handled = super.performClick();
+    this.summarize = !this.summarize;
+    setLines(this.lines);
+    return handled;
+  }
+
+  /**
+   * Drags and flings the display sideways, and turns taps and long presses
+   * into clicks and long clicks.
+   */
+  private class Gestures extends GestureDetector.SimpleOnGestureListener {
+
+    @Override
+    public boolean onDown(final MotionEvent e) {
+      StackDisplay.this.scroller.forceFinished(true);
+      return true;
+    }
+
+    @Override
+    public boolean onScroll(final MotionEvent e1, final MotionEvent e2,
+        final float dx, final float dy) {
+      final int x = Math.round(getScrollX() + dx);
+      scrollTo(Math.max(0, Math.min(x, maxScroll())), 0);
+      return true;
+    }
+
+    @Override
+    public boolean onFling(final MotionEvent e1, final MotionEvent e2,
+        final float vx, final float vy) {
+      StackDisplay.this.scroller.fling(getScrollX(), 0, (int) -vx, 0, 0,
+          maxScroll(), 0, 0);
+      invalidate();
+      return true;
+    }
+
+    @Override
+    public boolean onSingleTapUp(final MotionEvent e) {
+      return performClick();
+    }
+
+    @Override
+    public void onLongPress(final MotionEvent e) {
+      performLongClick();
+    }
+  }
+
+}
@@ -0,0 +1,613 @@
+package com.ath0.rpn;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.SequenceInputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads and writes the calculator's saved state in a compact binary format.
+ * The file starts with the bytes "RPN" and a version number, followed by:
+ * <ul>
+ * <li>the number of stack entries, as an unsigned varint;</li>
+ * <li>each entry from the bottom of the stack up, as its scale (a signed
+ * varint), the number of bytes in its unscaled value (an unsigned varint),
+ * and the unscaled value in big-endian two's complement;</li>
+ * <li>the display scale, as a signed varint;</li>
+ * <li>the length of the input buffer, as an unsigned varint, followed by
+ * its characters in UTF-8;</li>
+ * <li>the number of recorded macros, as an unsigned varint, followed by
+ * the text of each, stored like the input buffer;</li>
+ * <li>journal records of changes made since, each a type byte and its
+ * fields, ending at a zero byte or the end of the file.</li>
+ * </ul>
+ * The records are:
+ * <ul>
+ * <li>RECORD_PUSH, a value pushed onto the stack;</li>
+ * <li>RECORD_EDIT, an unsigned varint naming one of the
+ * CalculatorStack.EDIT_ operations;</li>
+ * <li>RECORD_RESULT, the number of operands as an unsigned varint, and the
+ * value which replaced them;</li>
+ * <li>RECORD_SCALE, a new display scale as a signed varint;</li>
+ * <li>RECORD_INPUT, the new contents of the input buffer, stored like the
+ * input buffer above;</li>
+ * <li>RECORD_MACROS, all the recorded macros, stored as above;</li>
+ * <li>RECORD_INPUT_APPEND, characters typed onto the end of the input
+ * buffer, stored like the input buffer;</li>
+ * <li>RECORD_INPUT_TRUNCATE, the input buffer's new, shorter length after
+ * characters were deleted from its end, as an unsigned varint.</li>
+ * </ul>
+ * Unsigned varints hold 7 bits per byte, low bits first, with the top bit
+ * set on all bytes but the last. Signed varints are zigzag encoded first.
+ * All I/O goes through a single file channel and buffer. Files written by
+ * version 3, which recorded every change to the input buffer with
+ * RECORD_INPUT, version 2, which had no macros, version 1, which had no
+ * records either, and earlier versions with Java serialization are still
+ * read.
+ */
+public final class StateFile {
+
+  private static final byte[] MAGIC = {'R', 'P', 'N'};
+  private static final int VERSION = 4;
+  private static final int VERSION_WITHOUT_MACROS = 2;
+  private static final int VERSION_WITHOUT_RECORDS = 1;
+
+  // Journal record types.
+  static final byte RECORD_PUSH = 1;
+  static final byte RECORD_EDIT = 2;
+  static final byte RECORD_RESULT = 3;
+  static final byte RECORD_SCALE = 4;
+  static final byte RECORD_INPUT = 5;
+  static final byte RECORD_MACROS = 6;
+  static final byte RECORD_INPUT_APPEND = 7;
+  static final byte RECORD_INPUT_TRUNCATE = 8;
+
+  // First two bytes of a Java serialization stream.
+  private static final int SERIALIZED_MAGIC = 0xACED;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // Longest encoding of an int as a varint.
+  static final int MAX_VARINT_BYTES = 5;
+
+  // Longest encoding of a compact value.
+  static final int MAX_COMPACT_VALUE_BYTES =
+      2 * MAX_VARINT_BYTES + Long.SIZE / Byte.SIZE;
+
+  static final String CHARSET = "UTF-8";
+
+  // Suffix of the files written before they replace the state file.
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private StateFile() {
+    super();
+  }
+
+  /**
+   * Makes a new temporary file alongside a state file, to be written and
+   * then renamed over it. Each has its own name, so that a write still
+   * finishing for a closed journal never touches the file being written
+   * for the next.
+   */
+  static File tempFile(final File file) throws IOException {
+    return File.createTempFile(file.getName(), TEMP_SUFFIX,
+        file.getAbsoluteFile().getParentFile());
+  }
+
+  /**
+   * Deletes temporary files left alongside a state file by writes which
+   * never finished.
+   */
+  static void deleteTempFiles(final File file) {
+    final String name = file.getName();
+    final File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+    if (files == null) {
+      return;
+    }
+    for (final File f : files) {
+      final String n = f.getName();
+      if (n.startsWith(name) && n.endsWith(TEMP_SUFFIX) &&
+          n.length() > name.length() + TEMP_SUFFIX.length()) {
+        f.delete();
+      }
+    }
+  }
+
+  /**
+   * Writes the state to a file, replacing any existing file. The state is
+   * written to a temporary file alongside, which is synced and then renamed
+   * over the old file, so that the file is never left half written.
+   * @param file the file to write
+   * @param stack the calculator stack, including its display scale
+   * @param input the contents of the input buffer
+   */
+  public static void write(final File file, final CalculatorStack stack,
+      final String input) throws IOException {
+    final File temp = tempFile(file);
+    boolean replaced = false;
+    try {
+      writeTo(temp, stack, input);
+      replaced = temp.renameTo(file);
+      if (!replaced) {
+        throw new IOException("Unable to replace " + file.getName());
+      }
+    } finally {
+      if (!replaced) {
+        temp.delete();
+      }
+    }
+  }
+
+  private static void writeTo(final File file, final CalculatorStack stack,
+      final String input) throws IOException {
+    final FileOutputStream fos = new FileOutputStream(file);
+    try {
+      write(fos.getChannel(), stack, input);
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+  }
+
+  /**
+   * Writes the state to a channel, without any journal records. The caller
+   * is responsible for syncing.
+   * @return the number of bytes written
+   */
+  static long write(final FileChannel channel, final CalculatorStack stack,
+      final String input) throws IOException {
+    final Output out = new Output(channel);
+    out.bytes(MAGIC, 0, MAGIC.length);
+    out.varint(VERSION);
+    out.varint(stack.size());
+    for (final Iterator<ScaledDecimal> i = stack.values(); i.hasNext();) {
+      out.value(i.next());
+    }
+    out.signedVarint(stack.getScale());
+    final byte[] chars = input.getBytes(CHARSET);
+    out.varint(chars.length);
+    out.bytes(chars, 0, chars.length);
+    final Macro[] macros = stack.getMacros();
+    out.varint(macros.length);
+    for (final Macro macro : macros) {
+      final byte[] text = macro.getText().getBytes(CHARSET);
+      out.varint(text.length);
+      out.bytes(text, 0, text.length);
+    }
+    return out.flush();
+  }
+
+  /**
+   * Reads the state from a file, in either the current format or the Java
+   * serialization format used by earlier versions. Any journal records are
+   * replayed.
+   * @param file the file to read
+   * @param stack a stack to hold the saved values and display scale; any
+   * values already on it, and its undo history, are removed
+   * @return the saved contents of the input buffer
+   * @throws java.io.FileNotFoundException if there is no saved state
+   * @throws IOException if the file can't be read or is not a state file
+   */
+  public static String read(final File file, final CalculatorStack stack)
+      throws IOException {
+    final FileInputStream fis = new FileInputStream(file);
+    try {
+      final StringBuilder input = new StringBuilder();
+      read(fis.getChannel(), stack, input);
+      return input.toString();
+    } finally {
+      fis.close();
+    }
+  }
+
+  /**
+   * Reads the state from a channel, replaying any journal records. A
+   * record cut short by the end of the file is ignored.
+   * @param input receives the contents of the input buffer
+   * @return the offset just past the last record, where more can be
+   * appended, or -1 if the file is in an older format and must be
+   * rewritten first
+   */
+  static long read(final FileChannel channel, final CalculatorStack stack,
+      final StringBuilder input) throws IOException {
+    final Input in = new Input(channel);
+    in.require(2);
+    if (in.buffer.getShort(0) == (short) SERIALIZED_MAGIC) {
+      input.append(readSerialized(in, stack));
+      return -1;
+    }
+    in.require(MAGIC.length);
+    for (final byte b : MAGIC) {
+      if (in.buffer.get() != b) {
+        throw new IOException("Not a state file");
+      }
+    }
+    final int version = in.varint();
+    if (version < VERSION_WITHOUT_RECORDS || version > VERSION) {
+      throw new IOException("Unsupported state file version " + version);
+    }
+    stack.clear();
+    final int size = in.varint();
+    for (int i = 0; i < size; i++) {
+      stack.push(in.value());
+    }
+    stack.setScale(in.signedVarint());
+    input.append(in.string());
+    if (version == VERSION_WITHOUT_RECORDS ||
+        version == VERSION_WITHOUT_MACROS) {
+      stack.setMacros(new Macro[0]);
+    } else {
+      stack.setMacros(readMacros(in));
+    }
+    long end = -1;
+    if (version != VERSION_WITHOUT_RECORDS) {
+      end = in.offset();
+      try {
+        while (replay(in, stack, input)) {
+          end = in.offset();
+        }
+      } catch (EOFException ex) {
+        // The last record was cut short.
+      }
+    }
+    stack.clearHistory();
+    return end;
+  }
+
+  /**
+   * Reads a journal record and applies it to the stack or input.
+   * @return false if there are no more records
+   */
+  private static boolean replay(final Input in, final CalculatorStack stack,
+      final StringBuilder input) throws IOException {
+    if (!in.more()) {
+      return false;
+    }
+    final byte type = in.buffer.get();
+    switch (type) {
+    case 0:
+      return false;
+    case RECORD_PUSH:
+      stack.push(in.value());
+      break;
+    case RECORD_EDIT:
+      if (!stack.replay(in.varint())) {
+        throw new IOException("Bad edit in state file");
+      }
+      break;
+    case RECORD_RESULT:
+      final int arity = in.varint();
+      final ScaledDecimal value = in.value();
+      if (arity < 1 || arity > 2 || arity > stack.size()) {
+        throw new IOException("Bad result in state file");
+      }
+      stack.replaceTop(arity, value);
+      break;
+    case RECORD_SCALE:
+      stack.setScale(in.signedVarint());
+      break;
+    case RECORD_INPUT:
+      final String text = in.string();
+      input.setLength(0);
+      input.append(text);
+      break;
+    case RECORD_MACROS:
+      stack.setMacros(readMacros(in));
+      break;
+    case RECORD_INPUT_APPEND:
+      input.append(in.string());
+      break;
+    case RECORD_INPUT_TRUNCATE:
+      final int length = in.varint();
+      if (length < 0 || length > input.length()) {
+        throw new IOException("Bad input length in state file");
+      }
+      input.setLength(length);
+      break;
+    default:
+      throw new IOException("Bad record in state file");
+    }
+    return true;
+  }
+
+  /**
+   * Reads a count of macros and the text of each, and compiles them.
+   */
+  private static Macro[] readMacros(final Input in) throws IOException {
+    final int count = in.varint();
+    if (count < 0) {
+      throw new IOException("Bad macro count in state file");
+    }
+    // The count isn't trusted for an allocation until the macros are read.
+    final List<Macro> macros = new ArrayList<Macro>();
+    for (int i = 0; i < count; i++) {
+      try {
+        macros.add(Macro.compile(in.string()));
+      } catch (IllegalArgumentException ex) {
+        throw new IOException("Bad macro in state file: " + ex.getMessage());
+      }
+    }
+    return macros.toArray(new Macro[macros.size()]);
+  }
+
+  /**
+   * Reads state saved by ObjectOutputStream, as a CalculatorStack followed
+   * by an InputBuffer.
+   */
+  private static String readSerialized(final Input in,
+      final CalculatorStack stack) throws IOException {
+    final ObjectInputStream ois = new ObjectInputStream(in.stream());
+    try {
+      final CalculatorStack saved = (CalculatorStack) ois.readObject();
+      // The InputBuffer's string form is its contents.
+      final Object buffer = ois.readObject();
+      stack.clear();
+      for (final ScaledDecimal value : saved.toArray()) {
+        stack.push(value);
+      }
+      stack.setScale(saved.getScale());
+      stack.setMacros(new Macro[0]);
+      stack.clearHistory();
+      return buffer == null ? "" : buffer.toString();
+    } catch (ClassNotFoundException ex) {
+      throw new IOException("Unreadable state file: " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Puts an unsigned varint into a buffer, which must have room for
+   * MAX_VARINT_BYTES.
+   */
+  static void putVarint(final ByteBuffer buffer, final int value) {
+    int v = value;
+    while ((v & ~0x7f) != 0) {
+      buffer.put((byte) ((v & 0x7f) | 0x80));
+      v >>>= 7;
+    }
+    buffer.put((byte) v);
+  }
+
+  /**
+   * Puts a signed varint into a buffer, which must have room for
+   * MAX_VARINT_BYTES.
+   */
+  static void putSignedVarint(final ByteBuffer buffer, final int value) {
+    putVarint(buffer, (value << 1) ^ (value >> 31));
+  }
+
+  /**
+   * Puts a compact value into a buffer, which must have room for
+   * MAX_COMPACT_VALUE_BYTES. The unscaled value is written straight from
+   * the long, in as few bytes as hold it with its sign.
+   */
+  static void putCompactValue(final ByteBuffer buffer,
+      final ScaledDecimal value) {
+    putSignedVarint(buffer, value.scale());
+    final long v = value.unscaledLong();
+    // Bits needed, including the sign bit.
+    final int bits = Long.SIZE + 1 - Long.numberOfLeadingZeros(v ^ (v >> 63));
+    final int n = (bits + 7) >> 3;
+    putVarint(buffer, n);
+    for (int shift = (n - 1) << 3; shift >= 0; shift -= 8) {
+      buffer.put((byte) (v >> shift));
+    }
+  }
+
+  /**
+   * Buffered writer of state file fields to a channel.
+   */
+  private static final class Output {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long written;
+
+    Output(final FileChannel channel) {
+      super();
+      this.channel = channel;
+    }
+
+    /**
+     * Makes room for at least n bytes in the buffer, n <= BUFFER_SIZE.
+     */
+    private void reserve(final int n) throws IOException {
+      if (this.buffer.remaining() < n) {
+        flush();
+      }
+    }
+
+    /**
+     * Writes out the buffer.
+     * @return the total number of bytes written so far
+     */
+    long flush() throws IOException {
+      this.buffer.flip();
+      while (this.buffer.hasRemaining()) {
+        this.written += this.channel.write(this.buffer);
+      }
+      this.buffer.clear();
+      return this.written;
+    }
+
+    void varint(final int value) throws IOException {
+      reserve(MAX_VARINT_BYTES);
+      putVarint(this.buffer, value);
+    }
+
+    void signedVarint(final int value) throws IOException {
+      reserve(MAX_VARINT_BYTES);
+      putSignedVarint(this.buffer, value);
+    }
+
+    void bytes(final byte[] b, final int offset, final int length)
+        throws IOException {
+      if (length > BUFFER_SIZE) {
+        flush();
+        final ByteBuffer wrapped = ByteBuffer.wrap(b, offset, length);
+        while (wrapped.hasRemaining()) {
+          this.written += this.channel.write(wrapped);
+        }
+      } else {
+        reserve(length);
+        this.buffer.put(b, offset, length);
+      }
+    }
+
+    /**
+     * Writes a stack value.
+     */
+    void value(final ScaledDecimal value) throws IOException {
+      if (value.isCompact()) {
+        reserve(MAX_COMPACT_VALUE_BYTES);
+        putCompactValue(this.buffer, value);
+      } else {
+        signedVarint(value.scale());
+        final byte[] b = value.toBigDecimal().unscaledValue().toByteArray();
+        varint(b.length);
+        bytes(b, 0, b.length);
+      }
+    }
+
+  }
+
+  /**
+   * Buffered reader of state file fields from a channel.
+   */
+  private static final class Input {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    Input(final FileChannel channel) {
+      super();
+      this.channel = channel;
+      this.buffer.flip();
+    }
+
+    /**
+     * Makes sure at least n bytes are in the buffer, n <= BUFFER_SIZE.
+     * @throws EOFException if the file ends first
+     */
+    void require(final int n) throws IOException {
+      if (this.buffer.remaining() >= n) {
+        return;
+      }
+      this.buffer.compact();
+      while (this.buffer.position() < n) {
+        if (this.channel.read(this.buffer) < 0) {
+          throw new EOFException("State file is truncated");
+        }
+      }
+      this.buffer.flip();
+    }
+
+    /**
+     * Returns whether there is any more input.
+     */
+    boolean more() throws IOException {
+      if (this.buffer.hasRemaining()) {
+        return true;
+      }
+      this.buffer.clear();
+      final int n = this.channel.read(this.buffer);
+      this.buffer.flip();
+      return n > 0;
+    }
+
+    /**
+     * Returns the offset in the file of the next byte to be read.
+     */
+    long offset() throws IOException {
+      return this.channel.position() - this.buffer.remaining();
+    }
+
+    int varint() throws IOException {
+      int result = 0;
+      for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+        require(1);
+        final byte b = this.buffer.get();
+        result |= (b & 0x7f) << shift;
+        if (b >= 0) {
+          return result;
+        }
+      }
+      throw new IOException("Bad varint in state file");
+    }
+
+    int signedVarint() throws IOException {
+      final int v = varint();
+      return (v >>> 1) ^ -(v & 1);
+    }
+
+    byte[] bytes(final int length) throws IOException {
+      if (length < 0) {
+        throw new IOException("Bad length in state file");
+      }
+      if (length > this.buffer.remaining() + this.channel.size() -
+          this.channel.position()) {
+        throw new EOFException("State file is truncated");
+      }
+      final byte[] b = new byte[length];
+      int done = Math.min(length, this.buffer.remaining());
+      this.buffer.get(b, 0, done);
+      if (done < length) {
+        final ByteBuffer wrapped = ByteBuffer.wrap(b, done, length - done);
+        while (wrapped.hasRemaining()) {
+          if (this.channel.read(wrapped) < 0) {
+            throw new EOFException("State file is truncated");
+          }
+        }
+      }
+      return b;
+    }
+
+    String string() throws IOException {
+      return new String(bytes(varint()), CHARSET);
+    }
+
+    ScaledDecimal value() throws IOException {
+      final int scale = signedVarint();
+      final int n = varint();
+      if (n == 0) {
+        throw new IOException("Bad value in state file");
+      }
+      if (n <= Long.SIZE / Byte.SIZE) {
+        require(n);
+        // Sign extend from the first byte.
+        long v = this.buffer.get();
+        for (int i = 1; i < n; i++) {
+          v = (v << 8) | (this.buffer.get() & 0xff);
+        }
+        return ScaledDecimal.valueOf(v, scale);
+      }
+      return ScaledDecimal.valueOf(new BigDecimal(new BigInteger(bytes(n)),
+          scale));
+    }
+
+    /**
+     * Returns a stream reading the rest of the input, starting with
+     * anything already buffered.
+     */
+    InputStream stream() {
+      return new SequenceInputStream(
+          new ByteArrayInputStream(this.buffer.array(),
+              this.buffer.position(), this.buffer.remaining()),
+          Channels.newInputStream(this.channel));
+    }
+
+  }
+
+}
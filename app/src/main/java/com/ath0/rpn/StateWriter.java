@@ -0,0 +1,117 @@
+package com.ath0.rpn;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Compacts a Journal's state file on a background thread, so that the UI
+ * thread never waits for the disk. Saves are given snapshots of the state,
+ * and only the latest is kept: if several are requested while an earlier
+ * one is being written, only the last is written after it.
+ */
+public final class StateWriter {
+
+  /**
+   * Callback to report failed saves.
+   */
+  public static interface OnSaveFailed {
+
+    /**
+     * Called on the writer thread when a save fails.
+     */
+    void onSaveFailed(IOException ex);
+  }
+
+  /**
+   * State waiting to be written.
+   */
+  private static final class Snapshot {
+
+    final CalculatorStack stack;
+    final String input;
+    final long mark;
+
+    Snapshot(final CalculatorStack stack, final String input,
+        final long mark) {
+      super();
+      this.stack = stack;
+      this.input = input;
+      this.mark = mark;
+    }
+  }
+
+  private final ExecutorService executor =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          final Thread t = new Thread(r, "RPN save");
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        }
+      });
+  private final AtomicReference<Snapshot> pending =
+      new AtomicReference<Snapshot>();
+  private final Journal journal;
+  private final OnSaveFailed listener;
+
+  private final Runnable write = new Runnable() {
+    @Override
+    public void run() {
+      final Snapshot snapshot = StateWriter.this.pending.getAndSet(null);
+      if (snapshot != null) {
+        try {
+          StateWriter.this.journal.compact(snapshot.stack, snapshot.input,
+              snapshot.mark);
+        } catch (IOException ex) {
+          StateWriter.this.listener.onSaveFailed(ex);
+        }
+      }
+    }
+  };
+
+  /**
+   * @param journal the journal whose file is written
+   * @param listener told about failed saves
+   */
+  public StateWriter(final Journal journal, final OnSaveFailed listener) {
+    super();
+    this.journal = journal;
+    this.listener = listener;
+  }
+
+  /**
+   * Saves the state in the background, replacing any save which hasn't
+   * started yet. Must be called on the thread which makes changes to the
+   * journal, so that the state matches the journal's records.
+   * @param stack the stack to save; this must not be changed afterwards,
+   * so pass a snapshot of the live stack
+   * @param input the contents of the input buffer
+   */
+  public void save(final CalculatorStack stack, final String input) {
+    final Snapshot snapshot = new Snapshot(stack, input, this.journal.mark());
+    if (this.pending.getAndSet(snapshot) == null) {
+      this.executor.execute(this.write);
+    }
+  }
+
+  /**
+   * Stops accepting saves. Any save already requested is still written.
+   */
+  public void shutdown() {
+    this.executor.shutdown();
+  }
+
+  /**
+   * Waits for saves to finish after shutdown().
+   * @return true if they finished, false if the timeout expired first
+   */
+  public boolean awaitTermination(final long timeout, final TimeUnit unit)
+      throws InterruptedException {
+    return this.executor.awaitTermination(timeout, unit);
+  }
+
+}
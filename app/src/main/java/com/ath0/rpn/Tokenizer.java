@@ -0,0 +1,193 @@
+package com.ath0.rpn;
+
+import java.util.Locale;
+
+/**
+ * Splits the text of an RPN program, such as "3 4 + 5 *", into numbers and
+ * operations, one at a time.
+ * <p>
+ * Tokens are separated by whitespace, except that the operators + - * / and
+ * ^ need no space around them, so "3 4+5*" is the same program. A minus sign
+ * directly before a digit or decimal point is part of a number. Numbers may
+ * have thousands commas, as copied from the display, and an exponent, as in
+ * 1.5e-3; a comma anywhere else makes the number invalid. Other operations
+ * are named by the tags of their keys, such as sqrt, pow, swap, drop, chs,
+ * 1/x, sdp and enter, or by the alternatives dup, neg and inv; names are
+ * not case sensitive.
+ */
+final class Tokenizer {
+
+  /** There are no more tokens. */
+  static final int END = 0;
+  /** The token is a number; see number(). */
+  static final int NUMBER = 1;
+  /** The token is an operation; see key(). */
+  static final int KEY = 2;
+  /** The token is not a number or operation. */
+  static final int UNKNOWN = 3;
+
+  private final CharSequence text;
+  private int pos;
+  // Bounds of the current token.
+  private int start;
+  private int end;
+  private int key;
+  private final StringBuilder number = new StringBuilder();
+
+  Tokenizer(final CharSequence text) {
+    super();
+    this.text = text;
+  }
+
+  /**
+   * Moves on to the next token.
+   * @return the kind of token: END, NUMBER, KEY or UNKNOWN
+   */
+  int next() {
+    final CharSequence t = this.text;
+    final int len = t.length();
+    while (this.pos < len && Character.isWhitespace(t.charAt(this.pos))) {
+      this.pos++;
+    }
+    this.start = this.pos;
+    if (this.pos == len) {
+      this.end = this.pos;
+      return END;
+    }
+    final char c = t.charAt(this.pos);
+    if (c == '-' ? !startsNumber(this.pos + 1) : isOperator(c)) {
+      this.pos++;
+      this.end = this.pos;
+      this.key = c == '^' ? Keys.POWER : Keys.forChar(c);
+      return KEY;
+    }
+    if (isReciprocal()) {
+      this.pos += 3;
+      this.end = this.pos;
+      this.key = Keys.RECIPROCAL;
+      return KEY;
+    }
+    if (startsNumber(this.pos)) {
+      return scanNumber();
+    }
+    while (this.pos < len && !isSeparator(t.charAt(this.pos))) {
+      this.pos++;
+    }
+    this.end = this.pos;
+    this.key = forName(token().toLowerCase(Locale.US));
+    return this.key == Keys.NONE ? UNKNOWN : KEY;
+  }
+
+  /**
+   * Returns the digits of a number token, without any commas, in a form
+   * ScaledDecimal.valueOf() accepts if the number is valid.
+   */
+  String number() {
+    return this.number.toString();
+  }
+
+  /**
+   * Returns the Keys code of an operation token.
+   */
+  int key() {
+    return this.key;
+  }
+
+  /**
+   * Returns the text of the current token, as written.
+   */
+  String token() {
+    return this.text.subSequence(this.start, this.end).toString();
+  }
+
+  /**
+   * Reads a number: digits, commas, a decimal point and an exponent. If
+   * the number runs straight into other characters, the whole run is an
+   * unknown token. Commas must be thousands separators, as Grouping reads
+   * them, or the number is invalid.
+   */
+  private int scanNumber() {
+    final CharSequence t = this.text;
+    final int len = t.length();
+    this.number.setLength(0);
+    if (t.charAt(this.pos) == '-') {
+      this.number.append('-');
+      this.pos++;
+    }
+    while (this.pos < len) {
+      final char c = t.charAt(this.pos);
+      if ((c >= '0' && c <= '9') || c == '.') {
+        this.number.append(c);
+      } else if ((c == 'e' || c == 'E') && this.pos + 1 < len) {
+        // An exponent, which may be signed.
+        this.number.append(c);
+        final char sign = t.charAt(this.pos + 1);
+        if (sign == '-' || sign == '+') {
+          this.number.append(sign);
+          this.pos++;
+        }
+      } else if (c != ',') {
+        break;
+      }
+      this.pos++;
+    }
+    if (this.pos < len && !isSeparator(t.charAt(this.pos))) {
+      while (this.pos < len && !isSeparator(t.charAt(this.pos))) {
+        this.pos++;
+      }
+      this.end = this.pos;
+      return UNKNOWN;
+    }
+    this.end = this.pos;
+    if (!Grouping.isGrouped(t, this.start, this.end)) {
+      // Keep the misplaced commas, so that the number fails to parse.
+      this.number.setLength(0);
+      this.number.append(t, this.start, this.end);
+    }
+    return NUMBER;
+  }
+
+  private boolean startsNumber(final int at) {
+    if (at >= this.text.length()) {
+      return false;
+    }
+    final char c = this.text.charAt(at);
+    return (c >= '0' && c <= '9') || c == '.' ||
+        (c == '-' && at == this.pos && startsNumber(at + 1));
+  }
+
+  /**
+   * Returns whether the text at the current position is "1/x", which
+   * would otherwise read as 1 divided by something.
+   */
+  private boolean isReciprocal() {
+    final CharSequence t = this.text;
+    final int p = this.pos;
+    return p + 2 < t.length() && t.charAt(p) == '1' &&
+        t.charAt(p + 1) == '/' &&
+        Character.toLowerCase(t.charAt(p + 2)) == 'x' &&
+        (p + 3 == t.length() || isSeparator(t.charAt(p + 3)));
+  }
+
+  private static boolean isOperator(final char c) {
+    return c == '+' || c == '-' || c == '*' || c == '/' || c == '^';
+  }
+
+  private static boolean isSeparator(final char c) {
+    return Character.isWhitespace(c) || isOperator(c);
+  }
+
+  private static int forName(final String name) {
+    if ("dup".equals(name)) {
+      return Keys.ENTER;
+    } else if ("neg".equals(name)) {
+      return Keys.CHS;
+    } else if ("inv".equals(name)) {
+      return Keys.RECIPROCAL;
+    }
+    final int key = Keys.forTag(name);
+    // Digits and the decimal point are never names.
+    return Keys.isInput(key) ? Keys.NONE : key;
+  }
+
+}
@@ -0,0 +1,449 @@
+package com.ath0.rpn;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Stack of calculator values, held as a persistent linked list.
+ * The list's nodes are never changed once made: pushing a value adds a node
+ * in front of the old top, and an operation on the top values makes new
+ * nodes which share the rest of the list with the old version. So copying
+ * a stack, to keep an old version for undo or a snapshot for saving, takes
+ * constant time, and each operation only costs memory for the values it
+ * changes.
+ * <p>
+ * Each node can also cache the value's text for display, which is thrown
+ * away with the node when the value changes.
+ * <p>
+ * Given a spill file, the stack keeps only the values near the top in
+ * memory. When more than twice the number to keep have been pushed onto
+ * them, the lower half are written to the file, which holds them as a list
+ * of the same shape, and the nodes above are made again over a node standing
+ * for the file's top record. Values are read back from the file as
+ * operations reach them, so memory use is bounded however deep the stack
+ * gets. Versions share spilled values just as they share nodes.
+ * <p>
+ * Nothing is synchronized, and callers are expected to check the size
+ * before operating on the stack, as CalculatorStack does. Values near the
+ * top are quick to reach; for the whole stack, use iterator().
+ */
+final class ValueStack {
+
+  // Rough size in memory of a node.
+  private static final int NODE_BYTES = 24;
+
+  /**
+   * An immutable list node, holding a value and the values beneath it.
+   * Outside this class, a node is only used as a version of a stack.
+   */
+  static final class Node {
+
+    // The value and the node beneath, or null if the value is spilled.
+    final ScaledDecimal value;
+    final Node next;
+    final int size;
+    // The spilled value's record in the spill file, or -1.
+    final long record;
+    // The number of values in memory from this one down.
+    final int hot;
+    // The value's text for display, and the key it was made for.
+    String text;
+    int textKey;
+
+    Node(final ScaledDecimal value, final Node next) {
+      super();
+      this.value = value;
+      this.next = next;
+      this.size = next == null ? 1 : next.size + 1;
+      this.record = -1;
+      this.hot = next == null ? 1 : next.hot + 1;
+    }
+
+    /**
+     * Makes a node standing for a value in the spill file.
+     */
+    Node(final long record, final int size) {
+      super();
+      this.value = null;
+      this.next = null;
+      this.size = size;
+      this.record = record;
+      this.hot = 0;
+    }
+  }
+
+  private Node top;
+  // Rough count of the bytes of memory allocated for new nodes and values.
+  private long allocated;
+  // Where values are spilled, if anywhere, and the number kept in memory.
+  private SpillFile spill;
+  private int keep;
+  // Whether values are still being spilled, which stops if the file fails.
+  private boolean spilling;
+
+  ValueStack() {
+    super();
+  }
+
+  /**
+   * Returns a new stack holding the same values. Later changes to either
+   * stack don't affect the other.
+   */
+  ValueStack copy() {
+    final ValueStack copy = new ValueStack();
+    copy.top = this.top;
+    copy.spill = this.spill;
+    copy.keep = this.keep;
+    copy.spilling = this.spilling;
+    return copy;
+  }
+
+  /**
+   * Returns a new stack holding the same values, like copy(), which keeps
+   * all new values in memory instead of spilling them. So it can be changed
+   * on another thread while this stack is still in use: values already
+   * spilled are only read from the file.
+   */
+  ValueStack memoryCopy() {
+    final ValueStack copy = copy();
+    copy.spilling = false;
+    return copy;
+  }
+
+  /**
+   * Keeps only the values near the top in memory, and spills the rest to a
+   * file. The file can't be changed once set.
+   * @param file the spill file
+   * @param values the number of values to keep in memory, at least 1
+   */
+  void spillTo(final SpillFile file, final int values) {
+    if (this.spill != null && this.spill != file) {
+      throw new IllegalStateException("Spill file already set");
+    }
+    if (values < 1) {
+      throw new IllegalArgumentException("Must keep at least one value");
+    }
+    this.spill = file;
+    this.keep = values;
+    this.spilling = true;
+  }
+
+  /**
+   * Returns the current version of the stack's values, which later changes
+   * don't affect.
+   */
+  Node version() {
+    return this.top;
+  }
+
+  /**
+   * Makes the stack hold an earlier version of its values.
+   */
+  void restore(final Node version) {
+    this.top = version;
+  }
+
+  /**
+   * Returns the number of values on the stack.
+   */
+  int size() {
+    return this.top == null ? 0 : this.top.size;
+  }
+
+  /**
+   * Returns whether the stack is empty.
+   */
+  boolean isEmpty() {
+    return this.top == null;
+  }
+
+  /**
+   * Returns a rough count of the bytes of memory allocated by changes to
+   * this stack, which only ever increases. Memory shared with other
+   * versions of the stack is not counted again.
+   */
+  long allocated() {
+    return this.allocated;
+  }
+
+  private Node node(final ScaledDecimal value, final Node next) {
+    this.allocated += NODE_BYTES + value.memorySize();
+    return new Node(value, next);
+  }
+
+  /**
+   * Returns a node's value, reading it from the spill file if need be.
+   */
+  private ScaledDecimal value(final Node n) {
+    return n.value != null ? n.value : this.spill.value(n.record);
+  }
+
+  /**
+   * Returns the node beneath a node, or null at the bottom.
+   */
+  private Node next(final Node n) {
+    if (n.record < 0) {
+      return n.next;
+    }
+    final long below = this.spill.next(n.record);
+    return below < 0 ? null : new Node(below, n.size - 1);
+  }
+
+  /**
+   * Returns whether two nodes are the same version of the values.
+   */
+  private static boolean same(final Node a, final Node b) {
+    return a == b || (a != null && b != null && a.record >= 0 &&
+        a.record == b.record);
+  }
+
+  /**
+   * Pushes a value onto the top of the stack.
+   */
+  void push(final ScaledDecimal value) {
+    this.top = node(value, this.top);
+    if (this.spilling && this.top.hot > 2 * this.keep) {
+      spill();
+    }
+  }
+
+  /**
+   * Writes the values in memory below the top ones to be kept to the spill
+   * file, and makes the nodes for those kept again over a node for the
+   * file's top record. If the file can't be written, spilling stops and
+   * values are kept in memory.
+   */
+  private void spill() {
+    final Node[] nodes = new Node[this.top.hot];
+    Node n = this.top;
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = n;
+      n = n.next;
+    }
+    long record = n == null ? -1 : n.record;
+    try {
+      for (int i = nodes.length - 1; i >= this.keep; i--) {
+        record = this.spill.append(nodes[i].value, record);
+      }
+    } catch (IOException ex) {
+      this.spilling = false;
+      return;
+    }
+    n = new Node(record, nodes[this.keep].size);
+    for (int i = this.keep - 1; i >= 0; i--) {
+      // The values themselves are shared.
+      this.allocated += NODE_BYTES;
+      n = new Node(nodes[i].value, n);
+      n.text = nodes[i].text;
+      n.textKey = nodes[i].textKey;
+    }
+    this.top = n;
+  }
+
+  /**
+   * Removes all values.
+   */
+  void clear() {
+    this.top = null;
+  }
+
+  /**
+   * Removes and returns the top value.
+   */
+  ScaledDecimal pop() {
+    final ScaledDecimal value = value(this.top);
+    this.top = next(this.top);
+    return value;
+  }
+
+  /**
+   * Returns the top value.
+   */
+  ScaledDecimal peek() {
+    return value(this.top);
+  }
+
+  /**
+   * Returns the value a given number of levels below the top.
+   * @param depth 0 for the top value, 1 for the one below it, and so on
+   */
+  ScaledDecimal peek(final int depth) {
+    return value(at(depth));
+  }
+
+  private Node at(final int depth) {
+    Node n = this.top;
+    for (int i = 0; i < depth; i++) {
+      n = next(n);
+    }
+    return n;
+  }
+
+  /**
+   * Returns the text cached for the value a given number of levels below
+   * the top, if it was cached with the same key.
+   * @param depth 0 for the top value, 1 for the one below it, and so on
+   * @param key identifies how the text was made, such as the display scale
+   * @return the text, or null if there is none for the key
+   */
+  String text(final int depth, final int key) {
+    final Node n = at(depth);
+    return n.text != null && n.textKey == key ? n.text : null;
+  }
+
+  /**
+   * Caches text for the value a given number of levels below the top, until
+   * the value changes or text is cached with a different key.
+   */
+  void setText(final int depth, final int key, final String text) {
+    final Node n = at(depth);
+    n.text = text;
+    n.textKey = key;
+  }
+
+  /**
+   * Returns the values from the bottom of the stack up. Every value is
+   * read into memory; see iterator().
+   */
+  ScaledDecimal[] toArray() {
+    return toArray(this.top, size());
+  }
+
+  /**
+   * Returns the top values of a version, from the lowest of them up.
+   * @param count the number of values, no more than the size
+   */
+  ScaledDecimal[] toArray(final Node version, final int count) {
+    final ScaledDecimal[] values = new ScaledDecimal[count];
+    Node n = version;
+    for (int i = count - 1; i >= 0; i--) {
+      values[i] = value(n);
+      n = next(n);
+    }
+    return values;
+  }
+
+  /**
+   * Returns the values from the bottom of the stack up, as they are now,
+   * holding only a chunk of them in memory at a time however deep the stack
+   * is. The stack is walked from the top twice.
+   */
+  Iterator<ScaledDecimal> iterator() {
+    return new Values(this.top);
+  }
+
+  /**
+   * Iterates over a version's values from the bottom up. A first walk down
+   * marks every so many nodes, about the square root of the size, and each
+   * chunk between marks is then read in turn from the lowest mark up.
+   */
+  private final class Values implements Iterator<ScaledDecimal> {
+
+    private final int size;
+    private final int step;
+    // The nodes at depths 0, step, 2 * step and so on.
+    private final Node[] marks;
+    private final ScaledDecimal[] chunk;
+    // The next mark to read a chunk from, the chunk's length, and the next
+    // value in it.
+    private int mark;
+    private int length;
+    private int index;
+
+    Values(final Node version) {
+      super();
+      this.size = version == null ? 0 : version.size;
+      this.step = (int) Math.sqrt(this.size) + 1;
+      this.marks = new Node[(this.size + this.step - 1) / this.step];
+      Node n = version;
+      for (int i = 0; i < this.marks.length; i++) {
+        this.marks[i] = n;
+        for (int j = 0; j < this.step && n != null; j++) {
+          n = ValueStack.this.next(n);
+        }
+      }
+      this.chunk = new ScaledDecimal[Math.min(this.step, this.size)];
+      this.mark = this.marks.length - 1;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return this.index < this.length || this.mark >= 0;
+    }
+
+    @Override
+    public ScaledDecimal next() {
+      if (this.index == this.length) {
+        if (this.mark < 0) {
+          throw new NoSuchElementException();
+        }
+        this.length = Math.min(this.step, this.size - this.mark * this.step);
+        Node n = this.marks[this.mark--];
+        for (int i = this.length - 1; i >= 0; i--) {
+          this.chunk[i] = value(n);
+          n = ValueStack.this.next(n);
+        }
+        this.index = 0;
+      }
+      return this.chunk[this.index++];
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Returns the number of values which must be popped from this stack, and
+   * pushed from the top of another version, to turn this stack into the
+   * other. Values the two versions share are left alone, so this takes
+   * time proportional to the number of values which differ.
+   * @return the number to pop in element 0 and to push in element 1
+   */
+  int[] differences(final Node version) {
+    Node a = this.top;
+    Node b = version;
+    int pop = 0;
+    int push = 0;
+    while (!same(a, b)) {
+      final int sizeA = a == null ? 0 : a.size;
+      final int sizeB = b == null ? 0 : b.size;
+      if (sizeA >= sizeB) {
+        a = next(a);
+        pop++;
+      }
+      if (sizeB >= sizeA) {
+        b = next(b);
+        push++;
+      }
+    }
+    return new int[] {pop, push};
+  }
+
+  /**
+   * Replaces the top value.
+   */
+  void replaceTop(final ScaledDecimal value) {
+    this.top = node(value, next(this.top));
+  }
+
+  /**
+   * Replaces the top two values with a single value, as for the result of a
+   * binary operation.
+   */
+  void collapse(final ScaledDecimal value) {
+    this.top = node(value, next(next(this.top)));
+  }
+
+  /**
+   * Exchanges the top two values.
+   */
+  void swap() {
+    final Node x = this.top;
+    final Node y = next(x);
+    this.top = node(value(y), node(value(x), next(y)));
+  }
+
+}
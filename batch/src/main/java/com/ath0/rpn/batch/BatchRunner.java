@@ -0,0 +1,279 @@
+package com.ath0.rpn.batch;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates RPN from a file or standard input without the Android app, with
+ * the calculator's own arithmetic and formatting, so that results match the
+ * calculator to the digit.
+ * <p>
+ * Each line of input is an expression, such as "19.99 3 * 1.08 *", and
+ * gives a line of output: the value left on top of the stack, formatted as
+ * on the display, or "Error: " and the error message. By default each line
+ * starts on an empty stack at the display scale given; with --script, each
+ * line carries on with the stack the line before left, like keying the
+ * lines in one after another, and the output is a tape of the results.
+ * <p>
+ * Input is read through a fixed size buffer, and results are written as
+ * they are made, so memory use does not grow with the size of the input.
+ * When the input is finished, the number of expressions evaluated and the
+ * rate they were evaluated at are reported on standard error.
+ * <p>
+ * With --parallel, independent expressions are evaluated on all cores, or
+ * the number of threads given. Lines are read in chunks, 1000 lines by
+ * default, and each chunk is a task for a work stealing ForkJoinPool; each
+ * worker thread has a stack of its own, so nothing is shared but the input
+ * and output. Results are written in input order, and only a few chunks per
+ * thread are read ahead, so memory use stays bounded.
+ * <pre>
+ * rpn-batch [--script | --parallel [THREADS]] [--chunk N] [--scale N] [FILE]
+ * </pre>
+ * The exit status is 0 if every expression was evaluated, 1 if any gave an
+ * error, and 2 if the arguments were wrong or the input or output failed.
+ */
+public final class BatchRunner {
+
+  private static final int EXIT_ERRORS = 1;
+  private static final int EXIT_FAILURE = 2;
+
+  private static final String USAGE = "Usage: rpn-batch " +
+      "[--script | --parallel [THREADS]] [--chunk N] [--scale N] [FILE]";
+
+  // The calculator's initial display scale.
+  private static final int DEFAULT_SCALE = 2;
+
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+  private static final String ERROR_PREFIX = "Error: ";
+
+  // Lines in each parallel task, unless given.
+  private static final int DEFAULT_CHUNK = 1000;
+
+  // Chunks read ahead of the one being written, per thread.
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private final Evaluator evaluator;
+  private final ThreadLocal<Evaluator> evaluators;
+  private long expressions;
+  private long errors;
+
+  BatchRunner(final int scale, final boolean script) {
+    super();
+    this.evaluator = new Evaluator(scale, script);
+    this.evaluators = new ThreadLocal<Evaluator>() {
+      @Override
+      protected Evaluator initialValue() {
+        return new Evaluator(scale, false);
+      }
+    };
+  }
+
+  public static void main(final String[] args) {
+    boolean script = false;
+    boolean parallel = false;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int chunk = DEFAULT_CHUNK;
+    int scale = DEFAULT_SCALE;
+    String path = null;
+    for (int i = 0; i < args.length; i++) {
+      final String arg = args[i];
+      if ("--script".equals(arg)) {
+        script = true;
+      } else if ("--parallel".equals(arg)) {
+        parallel = true;
+        if (i + 1 < args.length && isNumber(args[i + 1])) {
+          threads = Integer.parseInt(args[++i]);
+        }
+      } else if ("--chunk".equals(arg) && i + 1 < args.length &&
+          isNumber(args[i + 1])) {
+        chunk = Integer.parseInt(args[++i]);
+      } else if ("--scale".equals(arg) && i + 1 < args.length) {
+        try {
+          scale = Integer.parseInt(args[++i]);
+        } catch (NumberFormatException ex) {
+          fail(USAGE);
+        }
+      } else if (path == null && (!arg.startsWith("-") || "-".equals(arg))) {
+        path = arg;
+      } else {
+        fail(USAGE);
+      }
+    }
+    if ((script && parallel) || chunk < 1 || threads < 1) {
+      fail(USAGE);
+    }
+    final BatchRunner runner = new BatchRunner(scale, script);
+    final long start = System.nanoTime();
+    try {
+      final FileChannel input = path == null || "-".equals(path) ?
+          new FileInputStream(FileDescriptor.in).getChannel() :
+          new FileInputStream(path).getChannel();
+      try {
+        final Writer output = new BufferedWriter(Channels.newWriter(
+            new FileOutputStream(FileDescriptor.out).getChannel(), "UTF-8"),
+            OUTPUT_BUFFER_SIZE);
+        if (parallel) {
+          runner.runParallel(new LineReader(input), output, threads, chunk);
+        } else {
+          runner.run(new LineReader(input), output);
+        }
+        output.flush();
+      } finally {
+        input.close();
+      }
+    } catch (IOException ex) {
+      fail("rpn-batch: " + ex.getMessage());
+    }
+    runner.report(System.nanoTime() - start);
+    System.exit(runner.errors == 0 ? 0 : EXIT_ERRORS);
+  }
+
+  /**
+   * Evaluates every line of input, writing a line of output for each.
+   */
+  void run(final LineReader in, final Writer out) throws IOException {
+    final Evaluator e = this.evaluator;
+    for (CharSequence line = in.next(); line != null; line = in.next()) {
+      final String result = e.evaluate(line);
+      if (result == null) {
+        out.write(ERROR_PREFIX);
+        out.write(e.getError());
+        this.errors++;
+      } else {
+        out.write(result);
+      }
+      out.write('\n');
+      this.expressions++;
+    }
+  }
+
+  /**
+   * Evaluates every line of input in parallel, writing a line of output for
+   * each in input order.
+   * @param threads the number of worker threads
+   * @param chunk the number of lines in each task
+   */
+  void runParallel(final LineReader in, final Writer out, final int threads,
+      final int chunk) throws IOException {
+    final ForkJoinPool pool = new ForkJoinPool(threads);
+    final ArrayDeque<Chunk> pending = new ArrayDeque<Chunk>();
+    final int window = threads * CHUNKS_PER_THREAD;
+    try {
+      boolean more = true;
+      while (more) {
+        final String[] lines = new String[chunk];
+        int count = 0;
+        for (CharSequence line = in.next(); line != null; line = in.next()) {
+          lines[count++] = line.toString();
+          if (count == chunk) {
+            break;
+          }
+        }
+        more = count == chunk;
+        if (count > 0) {
+          final Chunk task = new Chunk(lines, count);
+          pending.add(task);
+          pool.execute(task);
+        }
+        while (!pending.isEmpty() && (pending.size() >= window || !more)) {
+          write(pending.poll(), out);
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Waits for a chunk to be evaluated, and writes its results.
+   */
+  private void write(final Chunk task, final Writer out) throws IOException {
+    task.join();
+    for (int i = 0; i < task.count; i++) {
+      final String result = task.results[i];
+      if (result == null) {
+        out.write(ERROR_PREFIX);
+        out.write(task.lines[i]);
+      } else {
+        out.write(result);
+      }
+      out.write('\n');
+    }
+    this.expressions += task.count;
+    this.errors += task.errors;
+  }
+
+  /**
+   * Reports the number of expressions evaluated, and how fast, on standard
+   * error.
+   * @param nanos the time taken, including reading and writing
+   */
+  private void report(final long nanos) {
+    final double seconds = nanos / 1e9;
+    System.err.println(String.format(Locale.US,
+        "%d expressions in %.3f s, %.0f expressions/s, %d errors",
+        Long.valueOf(this.expressions), Double.valueOf(seconds),
+        Double.valueOf(seconds > 0 ? this.expressions / seconds : 0),
+        Long.valueOf(this.errors)));
+  }
+
+  private static boolean isNumber(final String arg) {
+    for (int i = 0; i < arg.length(); i++) {
+      if (arg.charAt(i) < '0' || arg.charAt(i) > '9') {
+        return false;
+      }
+    }
+    return arg.length() > 0 && arg.length() < 10;
+  }
+
+  private static void fail(final String message) {
+    System.err.println(message);
+    System.exit(EXIT_FAILURE);
+  }
+
+  /**
+   * A chunk of lines, evaluated as a task by whichever worker thread takes
+   * it, with that thread's evaluator. When an expression fails, the error
+   * message replaces its line, and its result is null.
+   */
+  private final class Chunk extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    final String[] lines;
+    final int count;
+    final String[] results;
+    int errors;
+
+    Chunk(final String[] lines, final int count) {
+      super();
+      this.lines = lines;
+      this.count = count;
+      this.results = new String[count];
+    }
+
+    @Override
+    protected void compute() {
+      final Evaluator e = BatchRunner.this.evaluators.get();
+      for (int i = 0; i < this.count; i++) {
+        this.results[i] = e.evaluate(this.lines[i]);
+        if (this.results[i] == null) {
+          this.lines[i] = e.getError();
+          this.errors++;
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,72 @@
+package com.ath0.rpn.batch;
+
+import com.ath0.rpn.CalculatorStack;
+
+/**
+ * Evaluates RPN expressions and formats the value each leaves on top of the
+ * stack just as the calculator's display does. Expressions are either
+ * independent, each evaluated on an empty stack at the same display scale,
+ * or the lines of a script, each carrying on with the stack the last one
+ * left. One stack is reused throughout, with no undo history. An evaluator
+ * is not thread safe.
+ */
+final class Evaluator {
+
+  private final CalculatorStack stack = new CalculatorStack();
+  private final int scale;
+  private final boolean script;
+  private String error;
+
+  /**
+   * @param scale the display scale for results, as set on the calculator
+   * @param script true to keep the stack from one expression to the next,
+   * false to start each on an empty stack
+   */
+  Evaluator(final int scale, final boolean script) {
+    super();
+    this.scale = scale;
+    this.script = script;
+    this.stack.setHistoryLimit(0);
+    this.stack.setScale(scale);
+  }
+
+  /**
+   * Evaluates an expression, such as "3 4 + 5 *"; see CalculatorStack's
+   * evaluate() for the syntax.
+   * @return the value on top of the stack afterwards, formatted with
+   * thousands commas; an empty string if the stack is empty; or null if
+   * there was an error, which getError() then returns
+   */
+  String evaluate(final CharSequence expression) {
+    final CalculatorStack s = this.stack;
+    if (!this.script) {
+      while (!s.isEmpty()) {
+        s.drop();
+      }
+      if (s.getScale() != this.scale) {
+        s.setScale(this.scale);
+      }
+    }
+    try {
+      this.error = s.evaluate(expression);
+      if (this.error != null) {
+        return null;
+      }
+      return s.isEmpty() ? "" : s.toString(1).toString();
+    } catch (RuntimeException ex) {
+      // A failure the calculator doesn't report is this expression's
+      // error, not the end of the run.
+      this.error = ex.getMessage() == null ? ex.toString() : ex.getMessage();
+      return null;
+    }
+  }
+
+  /**
+   * Returns the error from the last expression evaluated, or null if there
+   * was none.
+   */
+  String getError() {
+    return this.error;
+  }
+
+}
@@ -0,0 +1,88 @@
+package com.ath0.rpn.batch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads lines of UTF-8 text from a channel, through a fixed size buffer, so
+ * that input of any size is read in constant memory, apart from the longest
+ * line. Lines may end with \n or \r\n. Malformed input is replaced rather
+ * than rejected. A reader is not thread safe.
+ */
+final class LineReader {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final ReadableByteChannel channel;
+  private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+  private final CharsetDecoder decoder;
+  private final StringBuilder line = new StringBuilder();
+  // Whether the channel has been read to the end, and then whether all its
+  // bytes have been decoded.
+  private boolean eof;
+  private boolean done;
+
+  LineReader(final ReadableByteChannel channel) {
+    super();
+    this.channel = channel;
+    this.decoder = Charset.forName("UTF-8").newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.bytes.flip();
+    this.chars.flip();
+  }
+
+  /**
+   * Reads the next line, without its line terminator.
+   * @return the line, which is only valid until the next call, or null if
+   * there are no more lines
+   */
+  CharSequence next() throws IOException {
+    final StringBuilder l = this.line;
+    l.setLength(0);
+    do {
+      final CharBuffer c = this.chars;
+      while (c.hasRemaining()) {
+        final char ch = c.get();
+        if (ch == '\n') {
+          final int end = l.length() - 1;
+          if (end >= 0 && l.charAt(end) == '\r') {
+            l.setLength(end);
+          }
+          return l;
+        }
+        l.append(ch);
+      }
+    } while (fill());
+    return l.length() == 0 ? null : l;
+  }
+
+  /**
+   * Decodes more characters into the buffer, reading more bytes as needed.
+   * @return false if there are no more characters
+   */
+  private boolean fill() throws IOException {
+    this.chars.clear();
+    while (this.chars.position() == 0 && !this.done) {
+      if (!this.eof) {
+        this.bytes.compact();
+        this.eof = this.channel.read(this.bytes) < 0;
+        this.bytes.flip();
+      }
+      if (this.decoder.decode(this.bytes, this.chars, this.eof)
+          .isUnderflow() && this.eof) {
+        this.decoder.flush(this.chars);
+        this.done = true;
+      }
+    }
+    this.chars.flip();
+    return this.chars.hasRemaining();
+  }
+
+}
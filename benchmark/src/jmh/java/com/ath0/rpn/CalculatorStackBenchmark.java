@@ -0,0 +1,160 @@
+package com.ath0.rpn;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the public operations of CalculatorStack across operand sizes and
+ * scales. Each benchmark pushes its operands, runs the operation and drops
+ * the result, so the stack stays the same depth from call to call.
+ * Operands are pushed as already parsed values so that string parsing doesn't
+ * dominate the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CalculatorStackBenchmark {
+
+  // Number of significant digits in each operand.
+  @Param({"2", "16", "100", "1000", "10000"})
+  public int digits;
+
+  // Number of those digits which are after the decimal point.
+  @Param({"0", "2", "32"})
+  public int scale;
+
+  // Number of stack levels rendered by the toString benchmark.
+  private static final int LEVELS = 4;
+
+  // Small integer exponent used by the exact power benchmark.
+  private static final ScaledDecimal EXPONENT = ScaledDecimal.valueOf(3, 0);
+
+  // Non-integer exponent, which forces the approximate power path.
+  private static final ScaledDecimal FRACTIONAL_EXPONENT =
+      ScaledDecimal.valueOf(5, 1);
+
+  private CalculatorStack stack;
+  private CalculatorStack display;
+  private ScaledDecimal x;
+  private ScaledDecimal y;
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(digits * 31L + scale);
+    this.x = randomNumber(random);
+    this.y = randomNumber(random);
+    this.stack = new CalculatorStack();
+    this.display = new CalculatorStack();
+    this.display.setScale(Math.min(this.scale, 31));
+    for (int i = 0; i < LEVELS; i++) {
+      this.display.push(randomNumber(random));
+    }
+  }
+
+  /**
+   * Builds a positive number with the requested number of digits, of which
+   * the last {@link #scale} are decimal places.
+   */
+  private ScaledDecimal randomNumber(final Random random) {
+    final StringBuilder s = new StringBuilder(this.digits);
+    s.append((char) ('1' + random.nextInt(9)));
+    for (int i = 1; i < this.digits; i++) {
+      s.append((char) ('0' + random.nextInt(10)));
+    }
+    return ScaledDecimal.valueOf(
+        new BigDecimal(new BigInteger(s.toString()), this.scale));
+  }
+
+  private void binary(final ScaledDecimal a, final ScaledDecimal b) {
+    this.stack.push(a);
+    this.stack.push(b);
+  }
+
+  @Benchmark
+  public void add() {
+    binary(this.y, this.x);
+    this.stack.add();
+    this.stack.drop();
+  }
+
+  @Benchmark
+  public void subtract() {
+    binary(this.y, this.x);
+    this.stack.subtract();
+    this.stack.drop();
+  }
+
+  @Benchmark
+  public void multiply() {
+    binary(this.y, this.x);
+    this.stack.multiply();
+    this.stack.drop();
+  }
+
+  @Benchmark
+  public String divide() {
+    binary(this.y, this.x);
+    final String error = this.stack.divide();
+    this.stack.drop();
+    return error;
+  }
+
+  @Benchmark
+  public String power() {
+    binary(this.x, EXPONENT);
+    final String error = this.stack.power();
+    this.stack.drop();
+    return error;
+  }
+
+  @Benchmark
+  public String powerFractional() {
+    binary(this.x, FRACTIONAL_EXPONENT);
+    final String error = this.stack.power();
+    this.stack.drop();
+    return error;
+  }
+
+  @Benchmark
+  public String sqrt() {
+    this.stack.push(this.x);
+    final String error = this.stack.sqrt();
+    this.stack.drop();
+    return error;
+  }
+
+  @Benchmark
+  public String reciprocal() {
+    this.stack.push(this.x);
+    final String error = this.stack.reciprocal();
+    this.stack.drop();
+    return error;
+  }
+
+  @Benchmark
+  public StringBuilder toStringLevels() {
+    return this.display.toString(LEVELS);
+  }
+
+  /**
+   * Redraws the display after changing only the top value, as after most
+   * keystrokes.
+   */
+  @Benchmark
+  public StringBuilder toStringTopChanged() {
+    this.display.chs();
+    return this.display.toString(LEVELS);
+  }
+
+}
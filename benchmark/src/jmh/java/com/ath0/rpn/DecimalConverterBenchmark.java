@@ -0,0 +1,77 @@
+package com.ath0.rpn;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures converting a large integer to decimal with DecimalConverter,
+ * against the host JVM's BigInteger.toString(), and against conversion by
+ * repeated division by 10^18, which is quadratic like the conversion in
+ * Android's BigInteger.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DecimalConverterBenchmark {
+
+  // Number of decimal digits in the value.
+  @Param({"1000", "10000", "100000", "300000"})
+  public int digits;
+
+  private static final BigInteger CHUNK = BigInteger.TEN.pow(18);
+
+  private BigInteger value;
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(this.digits);
+    final StringBuilder s = new StringBuilder(this.digits);
+    s.append((char) ('1' + random.nextInt(9)));
+    for (int i = 1; i < this.digits; i++) {
+      s.append((char) ('0' + random.nextInt(10)));
+    }
+    this.value = new BigInteger(s.toString());
+  }
+
+  @Benchmark
+  public String converter() {
+    return DecimalConverter.toString(this.value);
+  }
+
+  @Benchmark
+  public String platform() {
+    return this.value.toString();
+  }
+
+  @Benchmark
+  public String repeatedDivision() {
+    final long[] chunks = new long[this.digits / 18 + 1];
+    int n = 0;
+    for (BigInteger v = this.value; v.signum() != 0; ) {
+      final BigInteger[] parts = v.divideAndRemainder(CHUNK);
+      chunks[n++] = parts[1].longValue();
+      v = parts[0];
+    }
+    final StringBuilder s = new StringBuilder(this.digits);
+    s.append(chunks[n - 1]);
+    for (int i = n - 2; i >= 0; i--) {
+      final String chunk = Long.toString(chunks[i]);
+      for (int j = chunk.length(); j < 18; j++) {
+        s.append('0');
+      }
+      s.append(chunk);
+    }
+    return s.toString();
+  }
+
+}
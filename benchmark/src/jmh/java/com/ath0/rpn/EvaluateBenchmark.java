@@ -0,0 +1,49 @@
+package com.ath0.rpn;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures evaluating a pasted worksheet with CalculatorStack.evaluate(): a
+ * program of prices and quantities, each line multiplied and added to a
+ * running total.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EvaluateBenchmark {
+
+  // Number of tokens in the program.
+  @Param({"1000", "10000"})
+  public int tokens;
+
+  private String program;
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(this.tokens);
+    final StringBuilder s = new StringBuilder("0\n");
+    for (int i = 1; i < this.tokens; i += 4) {
+      s.append(random.nextInt(100000) / 100.0).append(' ')
+          .append(1 + random.nextInt(12)).append(" * +\n");
+    }
+    this.program = s.toString();
+  }
+
+  @Benchmark
+  public CalculatorStack evaluate() {
+    final CalculatorStack stack = new CalculatorStack();
+    stack.evaluate(this.program);
+    return stack;
+  }
+
+}
@@ -0,0 +1,57 @@
+package com.ath0.rpn;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures importing a pasted column of 50,000 numbers, with thousands
+ * commas as the display writes them, with NumberImporter, against
+ * evaluating the same text as a program and pushing the numbers one by one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ImportBenchmark {
+
+  private static final int NUMBERS = 50000;
+
+  private String column;
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(NUMBERS);
+    final NumberFormatter formatter = new NumberFormatter();
+    final StringBuilder s = new StringBuilder();
+    for (int i = 0; i < NUMBERS; i++) {
+      s.append(formatter.format(
+          ScaledDecimal.valueOf(random.nextInt(100000000), 2), 2))
+          .append('\n');
+    }
+    this.column = s.toString();
+  }
+
+  @Benchmark
+  public CalculatorStack importColumn() {
+    final CalculatorStack stack = new CalculatorStack();
+    final NumberImporter importer = new NumberImporter();
+    importer.read(this.column);
+    importer.pushTo(stack);
+    return stack;
+  }
+
+  @Benchmark
+  public CalculatorStack evaluate() {
+    final CalculatorStack stack = new CalculatorStack();
+    stack.evaluate(this.column);
+    return stack;
+  }
+
+}
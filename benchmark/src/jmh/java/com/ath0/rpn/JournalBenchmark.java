@@ -0,0 +1,60 @@
+package com.ath0.rpn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the cost of persisting a keystroke, a value pushed and then
+ * added, by appending it to the Journal. Compare with
+ * StateFileBenchmark.saveStateFile, the cost of saving the whole stack.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JournalBenchmark {
+
+  // Number of values on the stack.
+  @Param({"1000", "100000"})
+  public int entries;
+
+  private CalculatorStack stack;
+  private Journal journal;
+  private File file;
+
+  @Setup(Level.Iteration)
+  public void setup() throws IOException {
+    this.stack = new CalculatorStack();
+    for (int i = 0; i < this.entries; i++) {
+      this.stack.push(Integer.toString(i));
+    }
+    this.file = File.createTempFile("journal", ".rpn");
+    this.journal = new Journal(this.file);
+    this.journal.start(this.stack, "");
+    this.stack.setJournal(this.journal);
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    this.journal.close();
+    this.file.delete();
+  }
+
+  @Benchmark
+  public void keystroke() {
+    this.stack.push("1.5");
+    this.stack.add();
+  }
+
+}
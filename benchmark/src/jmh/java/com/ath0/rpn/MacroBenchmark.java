@@ -0,0 +1,54 @@
+package com.ath0.rpn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures replaying a 200 step macro with CalculatorStack.run(), against
+ * evaluating the same program from its text, which parses every number
+ * again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MacroBenchmark {
+
+  private static final int STEPS = 200;
+
+  private String program;
+  private Macro macro;
+
+  @Setup
+  public void setup() {
+    final StringBuilder s = new StringBuilder();
+    for (int i = 0; i < STEPS; i += 4) {
+      s.append("1.15 * 2.50 + ");
+    }
+    this.program = s.toString();
+    this.macro = Macro.compile(this.program);
+  }
+
+  @Benchmark
+  public CalculatorStack run() {
+    final CalculatorStack stack = new CalculatorStack();
+    stack.push(ScaledDecimal.valueOf(100, 0));
+    stack.run(this.macro);
+    return stack;
+  }
+
+  @Benchmark
+  public CalculatorStack evaluate() {
+    final CalculatorStack stack = new CalculatorStack();
+    stack.push(ScaledDecimal.valueOf(100, 0));
+    stack.evaluate(this.program);
+    return stack;
+  }
+
+}
@@ -0,0 +1,58 @@
+package com.ath0.rpn;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures a chain of multiplications following a division, with and
+ * without a cap on the scale of results. Without a cap, each multiplication
+ * adds another 32 decimal places to the running result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ScalePolicyBenchmark {
+
+  // Number of multiplications in the chain.
+  @Param({"4", "16", "64"})
+  public int length;
+
+  @Param({"unbounded", "capped"})
+  public String policy;
+
+  // 8/7 to 32 places, as a division on the calculator would give.
+  private static final ScaledDecimal FACTOR = ScaledDecimal.valueOf(
+      BigDecimal.valueOf(8).divide(BigDecimal.valueOf(7), 32,
+          RoundingMode.HALF_EVEN));
+
+  private CalculatorStack stack;
+
+  @Setup
+  public void setup() {
+    this.stack = new CalculatorStack();
+    if ("unbounded".equals(this.policy)) {
+      this.stack.setScalePolicy(ScalePolicy.UNBOUNDED);
+    }
+  }
+
+  @Benchmark
+  public void multiplyChain() {
+    this.stack.push(FACTOR);
+    for (int i = 0; i < this.length; i++) {
+      this.stack.push(FACTOR);
+      this.stack.multiply();
+    }
+    this.stack.drop();
+  }
+
+}
@@ -0,0 +1,56 @@
+package com.ath0.rpn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures pushing 200,000 values and adding them all up, on a stack held
+ * in memory and on one which spills all but the top 1,024 values to a
+ * SpillFile and pages them back as the additions reach them. Each spilled
+ * run has a new file, since space in the file is not reused.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SpillBenchmark {
+
+  private static final int VALUES = 200000;
+
+  private static CalculatorStack sum(final CalculatorStack stack) {
+    stack.setHistoryLimit(0);
+    for (int i = 0; i < VALUES; i++) {
+      stack.push(ScaledDecimal.valueOf(i * 7L + 1, 2));
+    }
+    for (int i = 1; i < VALUES; i++) {
+      stack.add();
+    }
+    return stack;
+  }
+
+  @Benchmark
+  public CalculatorStack inMemory() {
+    return sum(new CalculatorStack());
+  }
+
+  @Benchmark
+  public CalculatorStack spilled() throws IOException {
+    final SpillFile file = SpillFile.create(new File(
+        System.getProperty("java.io.tmpdir")));
+    try {
+      final CalculatorStack stack = new CalculatorStack();
+      stack.setSpillFile(file);
+      return sum(stack);
+    } finally {
+      file.close();
+    }
+  }
+
+}
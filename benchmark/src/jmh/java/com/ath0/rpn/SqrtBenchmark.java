@@ -0,0 +1,79 @@
+package com.ath0.rpn;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares CalculatorStack's square root against the plain Newton's method
+ * it replaced, which started from a shifted copy of the operand and did a
+ * full width division on every iteration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SqrtBenchmark {
+
+  // Number of digits in the operand.
+  @Param({"32", "1000", "100000"})
+  public int digits;
+
+  // Scale used by CalculatorStack for square roots.
+  private static final int INTERNAL_SCALE = 32;
+
+  private CalculatorStack stack;
+  private ScaledDecimal x;
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(this.digits);
+    final StringBuilder s = new StringBuilder(this.digits);
+    s.append((char) ('1' + random.nextInt(9)));
+    for (int i = 1; i < this.digits; i++) {
+      s.append((char) ('0' + random.nextInt(10)));
+    }
+    this.x = ScaledDecimal.valueOf(new BigDecimal(new BigInteger(s.toString()),
+        2));
+    this.stack = new CalculatorStack();
+  }
+
+  @Benchmark
+  public String precisionDoubling() {
+    this.stack.push(this.x);
+    final String error = this.stack.sqrt();
+    this.stack.drop();
+    return error;
+  }
+
+  @Benchmark
+  public BigDecimal plainNewton() {
+    return plainNewton(this.x.toBigDecimal(), INTERNAL_SCALE);
+  }
+
+  /**
+   * The previous implementation, from "Java Number Cruncher: The Java
+   * Programmer's Guide to Numerical Computing" (Ronald Mak, 2003).
+   */
+  private static BigDecimal plainNewton(final BigDecimal x, final int scale) {
+    final BigInteger n = x.movePointRight(scale << 1).toBigInteger();
+    final int bits = (n.bitLength() + 1) >> 1;
+    BigInteger ix = n.shiftRight(bits);
+    BigInteger ixPrev;
+    do {
+      ixPrev = ix;
+      ix = ix.add(n.divide(ix)).shiftRight(1);
+    } while (ix.compareTo(ixPrev) != 0);
+    return new BigDecimal(ix, scale);
+  }
+
+}
@@ -0,0 +1,98 @@
+package com.ath0.rpn;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compares saving and restoring a deep stack with StateFile against the
+ * Java serialization it replaced. Most values are everyday numbers at 2
+ * decimal places; one in ten has 40 digits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StateFileBenchmark {
+
+  // Number of values on the stack.
+  @Param({"1000", "100000"})
+  public int entries;
+
+  private CalculatorStack stack;
+  private File serialized;
+  private File binary;
+
+  @Setup
+  public void setup() throws IOException {
+    final Random random = new Random(this.entries);
+    this.stack = new CalculatorStack();
+    for (int i = 0; i < this.entries; i++) {
+      final StringBuilder s = new StringBuilder();
+      final int digits = i % 10 == 0 ? 40 : 1 + random.nextInt(8);
+      for (int j = 0; j < digits; j++) {
+        s.append((char) ('0' + random.nextInt(10)));
+      }
+      s.append('.');
+      s.append((char) ('0' + random.nextInt(10)));
+      s.append((char) ('0' + random.nextInt(10)));
+      this.stack.push(s.toString());
+    }
+    this.serialized = File.createTempFile("state", ".ser");
+    this.binary = File.createTempFile("state", ".rpn");
+    saveSerialized();
+    saveStateFile();
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.serialized.delete();
+    this.binary.delete();
+  }
+
+  @Benchmark
+  public void saveSerialized() throws IOException {
+    final ObjectOutputStream out = new ObjectOutputStream(
+        new FileOutputStream(this.serialized));
+    out.writeObject(this.stack);
+    out.writeObject("12.3");
+    out.close();
+  }
+
+  @Benchmark
+  public Object loadSerialized() throws IOException, ClassNotFoundException {
+    final ObjectInputStream in = new ObjectInputStream(
+        new FileInputStream(this.serialized));
+    final Object stack = in.readObject();
+    in.readObject();
+    in.close();
+    return stack;
+  }
+
+  @Benchmark
+  public void saveStateFile() throws IOException {
+    StateFile.write(this.binary, this.stack, "12.3");
+  }
+
+  @Benchmark
+  public CalculatorStack loadStateFile() throws IOException {
+    final CalculatorStack loaded = new CalculatorStack();
+    StateFile.read(this.binary, loaded);
+    return loaded;
+  }
+
+}
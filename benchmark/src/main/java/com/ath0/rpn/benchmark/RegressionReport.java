@@ -0,0 +1,131 @@
+package com.ath0.rpn.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files written in CSV format, and reports the
+ * change in score for every benchmark present in both. Scores are average
+ * times, so a positive change is a slowdown.
+ * Usage: RegressionReport baseline.csv current.csv [threshold percent]
+ * Exits with status 1 if any benchmark is slower than the baseline by more
+ * than the threshold.
+ */
+public final class RegressionReport {
+
+  private static final double DEFAULT_THRESHOLD = 10.0;
+
+  private RegressionReport() {
+    super();
+  }
+
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println(
+          "Usage: RegressionReport baseline.csv current.csv [threshold]");
+      System.exit(2);
+    }
+    final double threshold = args.length > 2 ?
+        Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+    final Map<String, Double> baseline = read(args[0]);
+    final Map<String, Double> current = read(args[1]);
+    int regressions = 0;
+    System.out.println(String.format(Locale.ROOT, "%-60s %14s %14s %8s",
+        "Benchmark", "Baseline", "Current", "Change"));
+    for (final Map.Entry<String, Double> entry : current.entrySet()) {
+      final Double before = baseline.get(entry.getKey());
+      if (before == null) {
+        System.out.println(String.format(Locale.ROOT, "%-60s %14s %14.3f %8s",
+            entry.getKey(), "-", entry.getValue(), "new"));
+        continue;
+      }
+      final double change = 100.0 * (entry.getValue() - before) / before;
+      String flag = "";
+      if (change > threshold) {
+        flag = "  REGRESSION";
+        regressions++;
+      }
+      System.out.println(String.format(Locale.ROOT,
+          "%-60s %14.3f %14.3f %+7.1f%%%s", entry.getKey(), before,
+          entry.getValue(), change, flag));
+    }
+    System.out.println(String.format(Locale.ROOT,
+        "%d of %d benchmarks regressed by more than %.1f%%", regressions,
+        current.size(), threshold));
+    if (regressions > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Reads a JMH CSV result file into a map from benchmark name and the
+   * parameters it has to score.
+   */
+  private static Map<String, Double> read(final String filename)
+      throws IOException {
+    final Map<String, Double> result = new LinkedHashMap<String, Double>();
+    final BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(filename), "UTF-8"));
+    try {
+      final List<String> header = split(in.readLine());
+      final int scoreCol = header.indexOf("Score");
+      final int firstParam = header.size() - countParams(header);
+      String line;
+      while ((line = in.readLine()) != null) {
+        final List<String> fields = split(line);
+        if (fields.size() != header.size()) {
+          continue;
+        }
+        final StringBuilder key = new StringBuilder(shortName(fields.get(0)));
+        for (int i = firstParam; i < fields.size(); i++) {
+          // Benchmarks without a parameter leave its column empty, so it
+          // is left out of the key whatever else is in the same file.
+          if (fields.get(i).isEmpty()) {
+            continue;
+          }
+          key.append(' ').append(header.get(i).substring("Param: ".length()))
+            .append('=').append(fields.get(i));
+        }
+        result.put(key.toString(), Double.valueOf(fields.get(scoreCol)));
+      }
+    } finally {
+      in.close();
+    }
+    return result;
+  }
+
+  private static int countParams(final List<String> header) {
+    int count = 0;
+    for (final String column : header) {
+      if (column.startsWith("Param: ")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static String shortName(final String benchmark) {
+    final int dot = benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1);
+    return benchmark.substring(dot + 1);
+  }
+
+  /**
+   * Splits a line of JMH CSV output. JMH quotes text fields, and never puts
+   * commas inside them.
+   */
+  private static List<String> split(final String line) {
+    final List<String> fields = new ArrayList<String>();
+    for (final String field : line.split(",", -1)) {
+      fields.add(field.replace("\"", "").trim());
+    }
+    return fields;
+  }
+
+}